@@ -0,0 +1,111 @@
+/**
+ * Measures how outbound frames are written to sockets.
+ *
+ * For each mode a server is started in this JVM and a number of receivers join one group. A
+ * TextMsgpClient pipelines messages to the group as fast as it can, so every message fans out
+ * to every receiver in a burst. The benchmark reports frames per socket write during the burst,
+ * delivery throughput, and the round trip latency of single requests on an idle connection,
+ * which must not wait for a burst that never comes.
+ *
+ * FlushBenchmark [receivers] [messages] [requests]
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FlushBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        int port = 4511;
+
+        System.out.println("mode     receivers  messages  socket-writes  frames-per-write  delivered-per-s  idle-p50-us  idle-p99-us");
+        for (ServerConfig.Mode mode : new ServerConfig.Mode[] { ServerConfig.Mode.THREAD, ServerConfig.Mode.NIO }) {
+            run(new ServerConfig().setPort(port++).setMode(mode).setOutboundLimit(Long.MAX_VALUE),
+                    receivers, messages, requests);
+        }
+        // Client reader threads would keep the JVM alive
+        System.exit(0);
+    }
+
+    /**
+     * Start a server, fan a burst out to the receivers and time idle requests.
+     *
+     * @param config
+     * @param receivers
+     * @param messages
+     * @param requests
+     * @throws Exception
+     */
+    private static void run(ServerConfig config, int receivers, int messages, int requests) throws Exception {
+        ThreadModeBenchmark.startServer(config);
+        ExecutorService readers = Executors.newCachedThreadPool();
+        ArrayList<Future<?>> received = new ArrayList<>();
+        CountDownLatch joined = new CountDownLatch(receivers);
+
+        for (int i = 0; i < receivers; i++) {
+            Socket socket = new Socket("localhost", config.getPort());
+            String user = "receiver-" + i;
+            received.add(readers.submit(() -> {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.writeUTF("msgp join " + user + " burst");
+                in.readUTF();
+                joined.countDown();
+                for (int j = 0; j < messages; j++) {
+                    in.readUTF();
+                }
+                socket.close();
+                return null;
+            }));
+        }
+        joined.await();
+
+        // Pipeline the burst
+        TextMsgpClient sender = new TextMsgpClient(null, new Socket("localhost", config.getPort()), "sender");
+        sender.join("sender", "burst");
+        long writesBefore = OutboundQueue.getSocketWrites();
+        long framesBefore = OutboundQueue.getFramesWritten();
+        long start = System.nanoTime();
+        ArrayList<CompletableFuture<String>> replies = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            replies.add(sender.sendRequest("msgp send\nfrom: sender\nto: #burst\n\nmessage " + i + "\n\n"));
+        }
+        for (Future<?> receiver : received) {
+            receiver.get();
+        }
+        for (CompletableFuture<String> reply : replies) {
+            reply.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        long writes = OutboundQueue.getSocketWrites() - writesBefore;
+        long frames = OutboundQueue.getFramesWritten() - framesBefore;
+        readers.shutdown();
+
+        // Requests on a connection with nothing else queued
+        Socket socket = new Socket("localhost", config.getPort());
+        socket.setTcpNoDelay(true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        long[] latencies = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long sent = System.nanoTime();
+            out.writeUTF("msgp groups");
+            out.flush();
+            in.readUTF();
+            latencies[i] = System.nanoTime() - sent;
+        }
+        Arrays.sort(latencies);
+        socket.close();
+
+        System.out.printf("%-8s %9d %9d %14d %17.1f %16d %12d %12d%n", config.getMode(), receivers, messages,
+                writes, (double) frames / writes, (long) messages * receivers * 1000000000L / elapsed,
+                latencies[requests / 2] / 1000, latencies[requests * 99 / 100] / 1000);
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Measures the throughput and allocation of the msgp hot paths, so changes to them can be
+ * checked for regressions.
+ *
+ * The server side is driven in this JVM by calling a ChatServer that does not listen, with
+ * recipients whose OutboundQueues are drained by the benchmark instead of a socket writer.
+ * Each benchmark runs for a warm-up period and then a measured one, and reports operations
+ * per second, bytes allocated per operation and the allocation rate. Allocation is counted on
+ * the benchmark's thread only: the history append and the delivery to a group's members, done
+ * by the group's shard thread during a send, are not included.
+ *
+ * HotPathBenchmark [seconds]
+ */
+
+package csci4311.chat;
+
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class HotPathBenchmark {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results are stored here so the JIT cannot drop the work that produced them
+    private static volatile Object sink;
+    private static long measureNanos;
+
+    public static void main(String[] args) throws Exception {
+        measureNanos = (args.length > 0 ? Long.parseLong(args[0]) : 2) * 1000000000L;
+        ServerConfig config = new ServerConfig().setOutboundLimit(Long.MAX_VALUE)
+                .setHistoryLimits("history-100k", new HistoryLimits(100000, 256 * 1024 * 1024));
+        ChatServer chatServer = new ChatServer(config, false);
+
+        System.out.println("benchmark                                     ops-per-s     bytes-per-op   alloc-mb-per-s");
+        recipients(config);
+        history(chatServer);
+        fanOut(chatServer);
+        client();
+        group();
+        // The client's reader thread would keep the JVM alive
+        System.exit(0);
+    }
+
+    /**
+     * Parsing a send and resolving its recipients, with and without the resolved set cached.
+     *
+     * @param config
+     * @throws Exception
+     */
+    private static void recipients(ServerConfig config) throws Exception {
+        ConcurrentHashMap<String, OutboundQueue> users = new ConcurrentHashMap<>();
+        ShardRing shards = new ShardRing(config.getShards());
+        RecipientResolver resolver = new RecipientResolver(users, shards, null);
+        for (int g = 0; g < 3; g++) {
+            String name = "group-" + g;
+            int first = g * 5;
+            Shard shard = shards.shardFor(name);
+            shard.call(() -> {
+                Group group = shard.addGroup(name, groupName -> new Group(groupName, new HistoryBuffer(config.getHistoryLimits())));
+                // Half of each group's members are also in the next group
+                for (int i = 0; i < 10; i++) {
+                    group.addMember("user-" + (first + i));
+                }
+                return group;
+            });
+        }
+        for (int i = 0; i < 20; i++) {
+            users.put("user-" + i, new OutboundQueue(Long.MAX_VALUE, SlowConsumerPolicy.DISCONNECT, null, null));
+        }
+        String message = "msgp send\nfrom: user-0\nto: @user-19\nto: #group-0\nto: #group-1\nto: #group-2\n\nhello\n\n";
+        RequestParser request = new RequestParser();
+
+        measure("RequestParser.parse 4 recipients", () -> request.parse(Msgp.SEND, message));
+        request.parse(Msgp.SEND, message);
+        measure("RecipientResolver.resolve 4 cached", () -> resolver.resolve(request, false));
+        measure("RecipientResolver.resolve 4 uncached", () -> {
+            resolver.clear();
+            return resolver.resolve(request, false);
+        });
+    }
+
+    /**
+     * Reading the whole history of groups with 1k and 100k messages, and a page of the larger one.
+     *
+     * @param chatServer
+     * @throws Exception
+     */
+    private static void history(ChatServer chatServer) throws Exception {
+        OutboundQueue member = new OutboundQueue(Long.MAX_VALUE, SlowConsumerPolicy.DISCONNECT, null, null);
+        RequestParser request = new RequestParser();
+        for (String group : new String[] { "history-1k", "history-100k" }) {
+            chatServer.join("historian", group, member);
+        }
+        for (int i = 0; i < 100000; i++) {
+            if (i < 1000) {
+                request.parse(Msgp.SEND, "msgp send\nfrom: historian\nto: #history-1k\n\nmessage " + i + "\n\n");
+                chatServer.send(request);
+            }
+            request.parse(Msgp.SEND, "msgp send\nfrom: historian\nto: #history-100k\n\nmessage " + i + "\n\n");
+            chatServer.send(request);
+            drain(member);
+        }
+
+        measure("ChatServer.history 1k", () -> chatServer.history("history-1k"));
+        measure("ChatServer.history 100k", () -> chatServer.history("history-100k"));
+        measure("ChatServer.history page of 100 in 100k", () -> chatServer.history("history-100k", 50000, 100, true));
+    }
+
+    /**
+     * Sending to groups of 10, 1k and 10k members, including draining each member's queue.
+     *
+     * @param chatServer
+     * @throws Exception
+     */
+    private static void fanOut(ChatServer chatServer) throws Exception {
+        for (int members : new int[] { 10, 1000, 10000 }) {
+            String group = "fan-out-" + members;
+            ArrayList<OutboundQueue> queues = new ArrayList<>();
+            for (int i = 0; i < members; i++) {
+                OutboundQueue queue = chatServer.createOutboundQueue(null, null);
+                chatServer.join(group + "-" + i, group, queue);
+                queues.add(queue);
+            }
+            RequestParser request = new RequestParser();
+            request.parse(Msgp.SEND, "msgp send\nfrom: " + group + "-0\nto: #" + group + "\n\nhello everyone\n\n");
+            measure("ChatServer.send to " + members + " members", () -> {
+                Response response = chatServer.send(request);
+                for (int i = 0; i < queues.size(); i++) {
+                    drain(queues.get(i));
+                }
+                return response;
+            });
+        }
+    }
+
+    /**
+     * Formatting a send and reading a received one on the client.
+     *
+     * @throws Exception
+     */
+    private static void client() throws Exception {
+        ServerConfig config = new ServerConfig().setPort(4531);
+        ThreadModeBenchmark.startServer(config);
+        TextMsgpClient client = new TextMsgpClient(null, new Socket("localhost", config.getPort()), "alice");
+        String[] input = "send @bob #group-0 #group-1 hello there everyone".split(" ");
+        String received = client.encodeMessage(input, "alice");
+
+        measure("TextMsgpClient.encodeMessage", () -> client.encodeMessage(input, "alice"));
+        measure("TextMsgpClient.decodeMessage", () -> client.decodeMessage(received));
+    }
+
+    /**
+     * Membership changes and checks on a group of 1k members.
+     *
+     * @throws Exception
+     */
+    private static void group() throws Exception {
+        Group group = new Group("members", new HistoryBuffer(new HistoryLimits(10, 1024)));
+        for (int i = 0; i < 1000; i++) {
+            group.addMember("user-" + i);
+        }
+
+        measure("Group.addMember + removeMember", () -> {
+            group.addMember("newcomer");
+            return group.removeMember("newcomer");
+        });
+        measure("Group.existsUser", () -> group.existsUser("user-500"));
+        measure("Group.getMembers 1k", group::getMembers);
+    }
+
+    /**
+     * Run an operation for the warm-up period, then for the measured period, and print the result.
+     *
+     * @param name
+     * @param operation
+     * @throws Exception
+     */
+    private static void measure(String name, Callable<Object> operation) throws Exception {
+        run(operation, measureNanos / 2);
+        long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long operations = run(operation, measureNanos);
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        System.out.printf("%-42s %12.0f %16.1f %16.1f%n", name, operations * 1e9 / elapsed,
+                (double) allocated / operations, allocated * 1e9 / elapsed / (1024 * 1024));
+    }
+
+    /**
+     * Repeat an operation for at least the given time, in batches that grow while they are quick,
+     * so reading the clock does not dominate cheap operations.
+     *
+     * @param operation
+     * @param nanos
+     * @return operations run
+     * @throws Exception
+     */
+    private static long run(Callable<Object> operation, long nanos) throws Exception {
+        long operations = 0;
+        int batch = 1;
+        long start = System.nanoTime();
+        long batchStart = start;
+        while (batchStart - start < nanos) {
+            for (int i = 0; i < batch; i++) {
+                sink = operation.call();
+            }
+            operations += batch;
+            long now = System.nanoTime();
+            if (now - batchStart < 1000000 && batch < 1 << 20) {
+                batch *= 2;
+            }
+            batchStart = now;
+        }
+        return operations;
+    }
+
+    private static void drain(OutboundQueue queue) {
+        while (queue.poll() != null) {
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Drives a ChatServer in this JVM with thousands of msgp clients and measures how long sends
+ * take to reach every member of their group.
+ *
+ * Every client connects, joins groups-per-client of the groups, spread evenly, and then only
+ * reads. Sender connections send to the groups in turn at a fixed total rate. The load is open
+ * loop: each send has a time it is due at, set before the run starts, and carries that time in
+ * its body. A sender that falls behind sends its overdue messages right away, and latency is
+ * measured from the due time to delivery, so a stalled server shows up as the latency it
+ * caused instead of as fewer, faster samples.
+ *
+ * The report covers the sends due during the measured period, after the warm-up: connections,
+ * sends and deliveries per second, deliveries missing, frames the server dropped, and
+ * send-to-delivery latency percentiles.
+ *
+ * LoadGenerator [--mode=thread|virtual|nio] [--clients=n] [--groups=n] [--groups-per-client=n]
+ *               [--senders=n] [--rate=sends/s] [--warmup=seconds] [--duration=seconds]
+ *               [--outbound-limit=bytes]
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class LoadGenerator {
+
+    private static final int PORT = 4541;
+    // Time allowed for the last sends to be delivered
+    private static final long DRAIN_NANOS = 2000000000L;
+
+    private ServerConfig.Mode mode = ServerConfig.Mode.NIO;
+    private int clients = 2000;
+    private int groups = 100;
+    private int groupsPerClient = 2;
+    private int senders = 10;
+    private int rate = 500;
+    private int warmupSeconds = 5;
+    private int durationSeconds = 20;
+    private long outboundLimit = new ServerConfig().getOutboundLimit();
+
+    // Due time of the first and after the last measured send
+    private volatile long measureStart;
+    private volatile long measureEnd;
+    private Histogram latency = new Histogram();
+    private LongAdder delivered = new LongAdder();
+    private LongAdder sent = new LongAdder();
+    private LongAdder failed = new LongAdder();
+    private AtomicInteger connections = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        generator.run();
+        // Client threads would keep the JVM alive
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            String option = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (option.equals("mode")) {
+                mode = ServerConfig.Mode.valueOf(value.toUpperCase());
+            } else if (option.equals("clients")) {
+                clients = Integer.parseInt(value);
+            } else if (option.equals("groups")) {
+                groups = Integer.parseInt(value);
+            } else if (option.equals("groups-per-client")) {
+                groupsPerClient = Integer.parseInt(value);
+            } else if (option.equals("senders")) {
+                senders = Integer.parseInt(value);
+            } else if (option.equals("rate")) {
+                rate = Integer.parseInt(value);
+            } else if (option.equals("warmup")) {
+                warmupSeconds = Integer.parseInt(value);
+            } else if (option.equals("duration")) {
+                durationSeconds = Integer.parseInt(value);
+            } else if (option.equals("outbound-limit")) {
+                outboundLimit = Long.parseLong(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: --" + option);
+            }
+        }
+        if (groupsPerClient > groups) {
+            throw new IllegalArgumentException("--groups-per-client must not exceed --groups");
+        }
+    }
+
+    private void run() throws Exception {
+        ServerConfig config = new ServerConfig().setPort(PORT).setMode(mode).setOutboundLimit(outboundLimit);
+        ThreadModeBenchmark.startServer(config);
+        System.out.println("mode " + mode + ", " + clients + " clients in " + groups + " groups, "
+                + groupsPerClient + " groups each, " + senders + " senders at " + rate + " sends/s");
+
+        // Members of each group, to know how many deliveries each send should make
+        int[] members = new int[groups];
+        CountDownLatch joined = new CountDownLatch(clients);
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            int[] memberOf = new int[groupsPerClient];
+            for (int j = 0; j < groupsPerClient; j++) {
+                // Spread each client's groups across the range so every group gets members
+                memberOf[j] = (i + j * groups / groupsPerClient) % groups;
+                members[memberOf[j]]++;
+            }
+            Socket socket = new Socket("localhost", PORT);
+            socket.setTcpNoDelay(true);
+            connections.incrementAndGet();
+            String user = "client-" + i;
+            Thread.ofVirtual().name("load-client-" + i).start(() -> receive(socket, user, memberOf, joined));
+        }
+        joined.await();
+        System.out.println("connected and joined in " + (System.nanoTime() - connectStart) / 1000000 + " ms");
+
+        long start = System.nanoTime() + 100000000L;
+        measureStart = start + warmupSeconds * 1000000000L;
+        measureEnd = measureStart + durationSeconds * 1000000000L;
+        ArrayList<Thread> senderThreads = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            Socket socket = new Socket("localhost", PORT);
+            connections.incrementAndGet();
+            int sender = s;
+            senderThreads.add(Thread.ofPlatform().name("load-sender-" + s).start(() -> send(socket, sender, start)));
+        }
+        // Every sender sends to the groups in turn, count what the measured sends should deliver
+        long expected = 0;
+        long interval = 1000000000L * senders / rate;
+        for (int s = 0; s < senders; s++) {
+            for (long n = 0; ; n++) {
+                long due = start + n * interval + s * interval / senders;
+                if (due >= measureEnd) {
+                    break;
+                }
+                if (due >= measureStart) {
+                    expected += members[(int) ((n * senders + s) % groups)];
+                }
+            }
+        }
+
+        for (Thread thread : senderThreads) {
+            thread.join();
+        }
+        Thread.sleep(DRAIN_NANOS / 1000000);
+        report(expected);
+    }
+
+    /**
+     * Join a client's groups, then record the latency of every message it is sent.
+     *
+     * @param socket
+     * @param user
+     * @param memberOf
+     * @param joined
+     */
+    private void receive(Socket socket, String user, int[] memberOf, CountDownLatch joined) {
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            for (int group : memberOf) {
+                out.writeUTF("msgp join " + user + " group-" + group);
+                out.flush();
+                in.readUTF();
+            }
+            joined.countDown();
+            while (true) {
+                String message = in.readUTF();
+                long now = System.nanoTime();
+                if (!message.startsWith("msgp send")) {
+                    continue;
+                }
+                int bodyStart = message.indexOf("\n\n") + 2;
+                long due = Long.parseLong(message.substring(bodyStart, message.indexOf('\n', bodyStart)));
+                if (due >= measureStart && due < measureEnd) {
+                    latency.record(now - due);
+                    delivered.increment();
+                }
+            }
+        } catch (IOException e) {
+            connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Send to the groups in turn, each send when it is due, until the measured period is over.
+     *
+     * @param socket
+     * @param sender
+     * @param start due time of the first send of all senders
+     */
+    private void send(Socket socket, int sender, long start) {
+        long interval = 1000000000L * senders / rate;
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // Replies are read apart from the sends, so a slow reply never delays the schedule
+            Thread.ofVirtual().start(() -> {
+                try {
+                    while (true) {
+                        if (!in.readUTF().startsWith("msgp 200")) {
+                            failed.increment();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed once sending is over
+                }
+            });
+            for (long n = 0; ; n++) {
+                // Senders are offset from each other so the sends are spread evenly
+                long due = start + n * interval + sender * interval / senders;
+                if (due >= measureEnd) {
+                    break;
+                }
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                int group = (int) ((n * senders + sender) % groups);
+                out.writeUTF("msgp send\nfrom: sender-" + sender + "\nto: #group-" + group + "\n\n" + due + "\n\n");
+                out.flush();
+                if (due >= measureStart) {
+                    sent.increment();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("The follow error occurred: " + e);
+        }
+    }
+
+    private void report(long expected) {
+        double seconds = durationSeconds;
+        long deliveries = delivered.sum();
+        System.out.println("connections       " + connections.get());
+        System.out.printf("sends/s           %.0f (target %d)%n", sent.sum() / seconds, rate);
+        System.out.printf("deliveries/s      %.0f%n", deliveries / seconds);
+        System.out.println("missing           " + (expected - deliveries) + " of " + expected);
+        System.out.println("failed sends      " + failed.sum());
+        System.out.println("dropped frames    " + (OutboundQueue.getDroppedOldest() + OutboundQueue.getDroppedNewest()));
+        System.out.printf("latency us        p50 %d  p99 %d  p999 %d  max %d%n", latency.getPercentile(0.5) / 1000,
+                latency.getPercentile(0.99) / 1000, latency.getPercentile(0.999) / 1000, latency.getMax() / 1000);
+    }
+}
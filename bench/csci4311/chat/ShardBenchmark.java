@@ -0,0 +1,114 @@
+/**
+ * Measures send throughput as the groups are spread across more Shards.
+ *
+ * For each shard count a server is started in this JVM with a number of groups, each with
+ * receivers of its own. One TextMsgpClient per group pipelines messages to its group, so every
+ * shard has work as long as its groups do. The benchmark reports messages accepted and
+ * delivered per second. Throughput can only grow with the shard count while there are idle
+ * processors to run the shards on.
+ *
+ * ShardBenchmark [groups] [receivers-per-group] [messages-per-group]
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ShardBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int groups = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int receivers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int port = 4521;
+
+        System.out.println("processors " + Runtime.getRuntime().availableProcessors());
+        System.out.println("shards  groups  receivers  messages  sent-per-s  delivered-per-s");
+        for (int shards = 1; shards <= 8; shards *= 2) {
+            run(new ServerConfig().setPort(port++).setMode(ServerConfig.Mode.NIO).setOutboundLimit(Long.MAX_VALUE)
+                    .setShards(shards), groups, receivers, messages);
+        }
+        // Client reader threads would keep the JVM alive
+        System.exit(0);
+    }
+
+    /**
+     * Start a server, join the receivers and have one sender per group send to it.
+     *
+     * @param config
+     * @param groups
+     * @param receivers
+     * @param messages
+     * @throws Exception
+     */
+    private static void run(ServerConfig config, int groups, int receivers, int messages) throws Exception {
+        ThreadModeBenchmark.startServer(config);
+        ExecutorService readers = Executors.newCachedThreadPool();
+        ArrayList<Future<?>> received = new ArrayList<>();
+        CountDownLatch joined = new CountDownLatch(groups * receivers);
+
+        for (int g = 0; g < groups; g++) {
+            for (int i = 0; i < receivers; i++) {
+                Socket socket = new Socket("localhost", config.getPort());
+                String user = "receiver-" + g + "-" + i;
+                String group = "group-" + g;
+                received.add(readers.submit(() -> {
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    out.writeUTF("msgp join " + user + " " + group);
+                    in.readUTF();
+                    joined.countDown();
+                    for (int j = 0; j < messages; j++) {
+                        in.readUTF();
+                    }
+                    socket.close();
+                    return null;
+                }));
+            }
+        }
+        joined.await();
+
+        ArrayList<TextMsgpClient> senders = new ArrayList<>();
+        for (int g = 0; g < groups; g++) {
+            TextMsgpClient sender = new TextMsgpClient(null, new Socket("localhost", config.getPort()), "sender-" + g);
+            sender.join("sender-" + g, "group-" + g);
+            senders.add(sender);
+        }
+
+        // Every sender pipelines its messages from a thread of its own
+        ExecutorService sending = Executors.newFixedThreadPool(groups);
+        ArrayList<Future<?>> sent = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int g = 0; g < groups; g++) {
+            TextMsgpClient sender = senders.get(g);
+            String header = "msgp send\nfrom: sender-" + g + "\nto: #group-" + g + "\n\nmessage ";
+            sent.add(sending.submit(() -> {
+                ArrayList<CompletableFuture<String>> replies = new ArrayList<>();
+                for (int i = 0; i < messages; i++) {
+                    replies.add(sender.sendRequest(header + i + "\n\n"));
+                }
+                for (CompletableFuture<String> reply : replies) {
+                    reply.get();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> sender : sent) {
+            sender.get();
+        }
+        long accepted = System.nanoTime() - start;
+        for (Future<?> receiver : received) {
+            receiver.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        sending.shutdown();
+        readers.shutdown();
+
+        long total = (long) groups * messages;
+        System.out.printf("%6d %7d %10d %9d %11d %16d%n", config.getShards(), groups, receivers, messages,
+                total * 1000000000L / accepted, total * receivers * 1000000000L / elapsed);
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Compares the platform thread and virtual thread modes of the ChatServer.
+ *
+ * For each mode a server is started in this JVM and a number of clients connect and add a user,
+ * then stay idle. The benchmark reports how long connecting took, how many platform threads and
+ * how much heap the idle connections cost, and the round trip latency of requests made on one
+ * connection while the others are idle.
+ *
+ * ThreadModeBenchmark [connections] [requests]
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+
+public class ThreadModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int port = 4411;
+
+        System.out.println("mode     connections  connect-ms  platform-threads  heap-per-conn  p50-us  p99-us");
+        for (ServerConfig.Mode mode : new ServerConfig.Mode[] { ServerConfig.Mode.THREAD, ServerConfig.Mode.VIRTUAL }) {
+            run(new ServerConfig().setPort(port++).setMode(mode), connections, requests);
+        }
+    }
+
+    /**
+     * Start a server, connect idle clients and measure one busy client.
+     *
+     * @param config
+     * @param connections
+     * @param requests
+     * @throws Exception
+     */
+    private static void run(ServerConfig config, int connections, int requests) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        ArrayList<Socket> sockets = new ArrayList<>();
+
+        startServer(config);
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = usedHeap();
+
+        // Connect idle clients
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            Socket socket = new Socket("localhost", config.getPort());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("msgp addUser " + config.getMode() + "-" + i);
+            in.readUTF();
+            sockets.add(socket);
+        }
+        long connectMillis = (System.nanoTime() - start) / 1000000;
+        int platformThreads = threads.getThreadCount() - threadsBefore;
+        long heapPerConnection = (usedHeap() - heapBefore) / connections;
+
+        // Time requests on one connection while the rest stay idle
+        DataOutputStream out = new DataOutputStream(sockets.get(0).getOutputStream());
+        DataInputStream in = new DataInputStream(sockets.get(0).getInputStream());
+        long[] latencies = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long sent = System.nanoTime();
+            out.writeUTF("msgp groups");
+            in.readUTF();
+            latencies[i] = System.nanoTime() - sent;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("%-8s %11d %11d %17d %14d %7d %7d%n", config.getMode(), connections, connectMillis,
+                platformThreads, heapPerConnection, latencies[requests / 2] / 1000, latencies[requests * 99 / 100] / 1000);
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        // Let connection threads exit so they are not counted against the next mode
+        for (int i = 0; i < 500 && threads.getThreadCount() > threadsBefore; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Run a ChatServer on a daemon thread and wait until it accepts connections.
+     *
+     * @param config
+     * @throws Exception
+     */
+    static void startServer(ServerConfig config) throws Exception {
+        Thread server = new Thread(() -> {
+            try {
+                new ChatServer(config);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "msgp-server-" + config.getPort());
+        server.setDaemon(true);
+        server.start();
+
+        while (true) {
+            try {
+                new Socket("localhost", config.getPort()).close();
+                return;
+            } catch (ConnectException e) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Heap in use after a full collection.
+     *
+     * @return
+     */
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Binary msgp wire format, negotiated with "msgp hello binary":
+ *
+ * int   length     bytes that follow this field
+ * byte  type       Msgp.REQUEST, Msgp.REPLY or Msgp.PUSH
+ * byte  opcode     command of the request, replies echo the request's opcode
+ * int   requestId  chosen by the client and echoed in the reply, 0 for pushed messages
+ * ...   payload    msgp text of the frame in UTF-8
+ *
+ * The length prefix lets the server dispatch on the opcode without looking at the payload and
+ * allows frames of up to Msgp.MAX_FRAME_LENGTH instead of writeUTF()'s 64 KB.
+ *
+ * The high bit of the type marks a compressed payload. Only a DeflateCodec sets it.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+public class BinaryCodec extends MsgpCodec {
+
+    // Bytes after the length field that are not payload
+    private static final int HEADER_LENGTH = 6;
+    // Set in the type of a frame whose payload is compressed
+    protected static final int COMPRESSED = 0x80;
+
+    public BinaryCodec(int id) {
+        super(id);
+    }
+
+    public ByteBuffer encode(int type, int opcode, int requestId, String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        return encode(type, opcode, requestId, bytes, bytes.length);
+    }
+
+    /**
+     * Frame length bytes of an encoded payload.
+     *
+     * @param type
+     * @param opcode
+     * @param requestId
+     * @param payload
+     * @param length
+     * @return
+     * @throws IOException if the payload does not fit in a frame
+     */
+    protected ByteBuffer encode(int type, int opcode, int requestId, byte[] payload, int length) throws IOException {
+        if (length + HEADER_LENGTH > Msgp.MAX_FRAME_LENGTH) {
+            throw new ProtocolException("frame too long: " + length + " bytes");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_LENGTH + length);
+        frame.putInt(HEADER_LENGTH + length);
+        frame.put((byte) type);
+        frame.put((byte) opcode);
+        frame.putInt(requestId);
+        frame.put(payload, 0, length);
+        frame.flip();
+        return frame;
+    }
+
+    public MsgpFrame read(DataInputStream in) throws IOException {
+        int length = checkLength(in.readInt());
+        int type = in.readUnsignedByte();
+        int opcode = in.readUnsignedByte();
+        int requestId = in.readInt();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        return new MsgpFrame(type & ~COMPRESSED, opcode, requestId, decodePayload(type, payload, 0, payload.length));
+    }
+
+    public int frameLength(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        return checkLength(buffer.getInt(buffer.position())) + 4;
+    }
+
+    protected MsgpFrame decode(ByteBuffer buffer, int length) throws IOException {
+        buffer.getInt();
+        int type = buffer.get() & 0xff;
+        int opcode = buffer.get() & 0xff;
+        int requestId = buffer.getInt();
+        int payloadLength = length - 4 - HEADER_LENGTH;
+        String payload;
+        if (buffer.hasArray()) {
+            payload = decodePayload(type, buffer.array(), buffer.arrayOffset() + buffer.position(), payloadLength);
+            buffer.position(buffer.position() + payloadLength);
+        } else {
+            byte[] bytes = new byte[payloadLength];
+            buffer.get(bytes);
+            payload = decodePayload(type, bytes, 0, payloadLength);
+        }
+        return new MsgpFrame(type & ~COMPRESSED, opcode, requestId, payload);
+    }
+
+    /**
+     * Decode the payload of a frame of the given type.
+     *
+     * @param type
+     * @param payload
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException if the payload is compressed, which plain binary frames never are
+     */
+    protected String decodePayload(int type, byte[] payload, int offset, int length) throws IOException {
+        if ((type & COMPRESSED) != 0) {
+            throw new ProtocolException("compressed frame without deflate");
+        }
+        return new String(payload, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reject lengths that are too short for a header or longer than allowed.
+     *
+     * @param length
+     * @return
+     * @throws ProtocolException
+     */
+    private int checkLength(int length) throws ProtocolException {
+        if (length < HEADER_LENGTH || length > Msgp.MAX_FRAME_LENGTH) {
+            throw new ProtocolException("invalid frame length " + length);
+        }
+        return length;
+    }
+}
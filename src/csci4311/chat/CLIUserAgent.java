@@ -1,17 +1,21 @@
 /**
  * Reads in user input and uses Msgp protocol to process requests.
+ * Subscribes to the TextMsgpClient's messages and prints them one at a time as they arrive.
  */
 
 package csci4311.chat;
 
 import java.util.*;
+import java.io.*;
 import java.net.*;
+import java.util.concurrent.*;
 
-public class CLIUserAgent implements UserAgent {
+public class CLIUserAgent implements UserAgent, Flow.Subscriber<Message> {
     private String userName;
     private TextMsgpClient textMsgpClient;
     private Socket clientSocket;
     private String response;
+    private Flow.Subscription subscription;
 
     /**
      * Ensure correct arguments are provided and begin client application.
@@ -43,6 +47,7 @@ public class CLIUserAgent implements UserAgent {
         this.userName = userName;
         clientSocket = new Socket(server, port);
         textMsgpClient = new TextMsgpClient(this, clientSocket, userName);
+        textMsgpClient.messages().subscribe(this);
         this.start();
     }
 
@@ -85,15 +90,31 @@ public class CLIUserAgent implements UserAgent {
      * Request to add a user to a group.
      */
     public void join(String userName, String group) {
-        response = textMsgpClient.join(userName, group);
+        // Join and ask for the group members in one round trip
+        List<String> replies = textMsgpClient.batch(Arrays.asList(
+                "msgp join " + userName + " " + group, "msgp users " + group));
+        int members;
+        if (replies.size() == 2) {
+            response = replies.get(0);
+            // The first line of the reply is the protocol's response message
+            members = replies.get(1).split("\n").length - 1;
+        } else {
+            // The batch failed or the server does not know "msgp batch", ask one at a time
+            response = textMsgpClient.join(userName, group);
+            if (response == null) {
+                deliverError("No reply from the server.");
+                return;
+            }
+            members = textMsgpClient.users(group).size();
+        }
         // If user is already part of a group
         if (response.startsWith("msgp 201"))
             System.out.println(userName + " is already a member of " + group);
+        else if (!response.startsWith("msgp 200"))
+            deliverError("Could not join " + group + ".");
         else {
-            // Request for group members
-            ArrayList<String> members = textMsgpClient.users(group);
             // Display group size
-            System.out.println("Joined # " + group + " with " + members.size() + " current member(s)");
+            System.out.println("Joined # " + group + " with " + members + " current member(s)");
         }
     }
 
@@ -102,7 +123,9 @@ public class CLIUserAgent implements UserAgent {
      */
     public void leave(String userName, String group) {
         response = textMsgpClient.leave(userName, group);
-        if (response.startsWith("msgp 201")) {
+        if (response == null) {
+            deliverError("No reply from the server.");
+        } else if (response.startsWith("msgp 201")) {
             System.out.println(userName + " is not a member of the group");
         } else if (response.startsWith("msgp 400")) {
             System.out.println(userName + " is not a member because the group does not exist.");
@@ -113,13 +136,9 @@ public class CLIUserAgent implements UserAgent {
      * Request a list of existing groups.
      */
     public void groups() {
-        ArrayList<String> groups = textMsgpClient.groups();
-        ArrayList<String> members;
-        if (groups != null) {
-            for (String group: groups) {
-                members = textMsgpClient.users(group);
-                System.out.println("#" + group + " has " + members.size() + " members");
-            }
+        // Every group's member count in one round trip
+        for (Map.Entry<String, Integer> group : textMsgpClient.counts().entrySet()) {
+            System.out.println("#" + group.getKey() + " has " + group.getValue() + " members");
         }
     }
 
@@ -136,13 +155,21 @@ public class CLIUserAgent implements UserAgent {
     }
 
     /**
-     * Request for group history and print results.
+     * Request for group history and print results, one page at a time.
      */
     public void history(String group) {
-        ArrayList<Message> history = textMsgpClient.history(group);
-        for (Message message : history) {
-            System.out.println("[" + message.getFrom() + "] " + message.getMessage());
+        ArrayList<Message> page = new ArrayList<>();
+        long since = 0;
+        boolean empty = true;
+        while ((since = textMsgpClient.history(group, since, Msgp.HISTORY_PAGE_LIMIT, page)) >= 0) {
+            for (Message message : page) {
+                System.out.println("[" + message.getFrom() + "] " + message.getMessage());
+            }
+            empty = false;
+            page.clear();
         }
+        if (empty)
+            deliverError(group + " does not have any history.");
     }
 
     /**
@@ -150,13 +177,48 @@ public class CLIUserAgent implements UserAgent {
      */
     public void send(String[] parsedUserInput) {
         response = textMsgpClient.send(parsedUserInput, userName);
-        if (response.startsWith("msgp 400")) {
+        if (response == null) {
+            deliverError("No reply from the server.");
+        } else if (response.startsWith("msgp 400")) {
             System.out.println("Recipient(s) do not exist.");
+        } else {
+            // Groups the message could not be added to, when the others got it
+            for (String line : response.split("\n")) {
+                if (line.startsWith("failed: ")) {
+                    deliverError("Could not send to " + line.substring("failed: ".length()) + ".");
+                }
+            }
         }
     }
 
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    /**
+     * Print a message, then ask for the next one.
+     *
+     * @param message
+     */
+    public void onNext(Message message) {
+        deliverMessage(message);
+        subscription.request(1);
+    }
+
+    public void onError(Throwable throwable) {
+        if (throwable instanceof IOException) {
+            deliverError("Connection to the server was lost.");
+        } else {
+            deliverError(throwable.getMessage());
+        }
+    }
+
+    public void onComplete() {
+    }
+
     /**
-     * Used by TextMsgpClient to deliver message to client.
+     * Print a message sent to the user.
      *
      * @param message
      */
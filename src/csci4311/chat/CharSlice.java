@@ -0,0 +1,78 @@
+/**
+ * A reusable view of part of a String, used to look names up without creating substrings.
+ *
+ * hashCode() matches String.hashCode() of the same characters and equals() accepts a String
+ * with the same characters, so a CharSlice can be passed to get() or containsKey() of a
+ * HashMap or ConcurrentHashMap with String keys: both call equals() on the key being looked
+ * up. The reverse, String.equals(slice), is false, so a CharSlice must never be stored as a key.
+ */
+
+package csci4311.chat;
+
+public class CharSlice implements CharSequence {
+
+    private String source;
+    private int start;
+    private int end;
+
+    /**
+     * Point the slice at source[start, end).
+     *
+     * @param source
+     * @param start
+     * @param end
+     * @return this slice
+     */
+    public CharSlice set(String source, int start, int end) {
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        return this;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public char charAt(int index) {
+        return source.charAt(start + index);
+    }
+
+    public CharSequence subSequence(int from, int to) {
+        return source.subSequence(start + from, start + to);
+    }
+
+    public int hashCode() {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        return hash;
+    }
+
+    public boolean equals(Object other) {
+        if (other == this) {
+            return true;
+        }
+        if (!(other instanceof CharSequence)) {
+            return false;
+        }
+        CharSequence sequence = (CharSequence) other;
+        if (sequence.length() != length()) {
+            return false;
+        }
+        if (sequence instanceof String) {
+            return source.regionMatches(start, (String) sequence, 0, length());
+        }
+        for (int i = 0; i < length(); i++) {
+            if (sequence.charAt(i) != charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String toString() {
+        return source.substring(start, end);
+    }
+}
@@ -1,5 +1,12 @@
 /**
  * Responsible for processing requests from msgp.
+ *
+ * Groups are partitioned across the Shards of a ShardRing. A group's members and history are
+ * only changed by its shard's thread, connection threads pass the shard tasks instead and wait
+ * for them, so a connection always sees its own earlier sends.
+ *
+ * With a Relay the server is one node of a federation: sends reach users and group members on
+ * the other nodes, and users and groups lists include them.
  */
 
 package csci4311.chat;
@@ -7,44 +14,150 @@ package csci4311.chat;
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 public class ChatServer implements Runnable {
 
-    // List of group names and their corresponding Group object
-    private Hashtable<String, Group> groups;
-    // List of users and their corresponding DataOutputStream
-    private Hashtable<String, DataOutputStream> users;
+    // Connections waiting to be accepted. The default of 50 slows down bursts of connects,
+    // such as every client reconnecting after a restart
+    static final int ACCEPT_BACKLOG = 4096;
+
+    // Groups, each owned by the shard its name hashes to
+    private ShardRing shards;
+    // List of users and their corresponding OutboundQueue
+    private ConcurrentHashMap<String, OutboundQueue> users;
+    // Names of the groups each user is a member of, the reverse of Group's members
+    private ConcurrentHashMap<String, Set<String>> userGroups;
+    // Resolves and caches the users each send is delivered to
+    private RecipientResolver recipients;
+    private ServerStats stats;
+    private ServerConfig config;
+    // On-disk history, null when history is kept in memory
+    private HistoryLog historyLog;
+    // Log of users, groups and memberships, null when they are not kept across restarts
+    private MembershipLog membershipLog;
+    // Link to the other nodes of the federation, null when running on its own
+    private Relay relay;
+    // Changes to a user's memberships are made and logged holding one of these, picked by name.
+    // Holders wait on shards, so neither a shard's thread nor an EventLoop ever takes one
+    private ReentrantLock[] membershipLocks;
     private ServerSocket socket;
-    private ArrayList<String> recipients;
+    // Builds the thread each ChatServerThread runs on, platform or virtual
+    private Thread.Builder connectionThreads;
 
     /**
-     * Set port and create ChatServer.
+     * Parse options and create ChatServer.
+     *
+     * ChatServer [port] [--mode=thread|virtual|nio] [--event-loops=n]
+     *            [--outbound-limit=bytes] [--slow-consumer=drop-oldest|drop-newest|disconnect]
+     *            [--history-messages=n] [--history-bytes=bytes] [--group-history=group:messages:bytes ...]
+     *            [--history-store=heap|off-heap|disk] [--history-dir=path]
+     *            [--history-segment-bytes=bytes] [--history-sync-ms=ms]
+     *            [--state-dir=path] [--snapshot-interval=changes] [--state-sync-ms=ms] [--reconnect-grace-ms=ms]
+     *            [--relay-port=port] [--peers=host:port,...] [--node=name] [--relay-secret=secret]
+     *            [--shards=n]
      *
      * @param argv
      * @throws Exception
      */
     public static void main(String argv[]) throws Exception {
-        // If port is not provided default to 4311
-        int port = argv.length > 0 ? Integer.parseInt(argv[0]) : 4311 ;
-        new ChatServer(port);
+        ServerConfig config;
+        try {
+            // If port is not provided default to 4311
+            config = ServerConfig.parse(argv);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        new ChatServer(config);
     }
 
     /**
-     * Instantiate instance variables and bind to port.
-     * Begin program.
+     * Create a thread per connection ChatServer bound to port.
      *
      * @param port
      * @throws Exception
      */
     public ChatServer(int port) throws Exception {
+        this(new ServerConfig().setPort(port));
+    }
+
+    /**
+     * Instantiate instance variables and bind to port.
+     * Begin program in the configured mode.
+     *
+     * @param config
+     * @throws Exception
+     */
+    public ChatServer(ServerConfig config) throws Exception {
+        this(config, true);
+    }
+
+    /**
+     * Instantiate instance variables and restore state.
+     * Without listen the constructor returns instead of serving connections, and requests are
+     * only made by calling the server's methods, as the benchmarks do.
+     *
+     * @param config
+     * @param listen
+     * @throws Exception
+     */
+    ChatServer(ServerConfig config, boolean listen) throws Exception {
         // Instantiate instance variables
-        recipients = new ArrayList<>();
-        groups = new Hashtable<>();
-        users = new Hashtable<>();
+        this.config = config;
+        // Concurrent maps instead of Hashtable so no connection thread waits on a monitor,
+        // which would pin a virtual thread to its carrier
+        shards = new ShardRing(config.getShards());
+        stats = new ServerStats(this);
+        users = new ConcurrentHashMap<>();
+        userGroups = new ConcurrentHashMap<>();
+        membershipLocks = new ReentrantLock[64];
+        for (int i = 0; i < membershipLocks.length; i++) {
+            membershipLocks[i] = new ReentrantLock();
+        }
         // Bind to port
         try {
-            socket = new ServerSocket(port);
-            run();
+            if (config.getRelayPort() != 0) {
+                relay = new Relay(this, config);
+            }
+            recipients = new RecipientResolver(users, shards, relay);
+            if (config.getHistoryStorage() == ServerConfig.HistoryStorage.DISK) {
+                historyLog = new HistoryLog(config.getHistoryDirectory(),
+                        config.getHistorySegmentBytes(), config.getHistorySyncMillis());
+                historyLog.start();
+                // Recreate the groups that have history on disk
+                for (String group : historyLog.getGroups()) {
+                    addGroup(group);
+                }
+            }
+            if (config.getStateDirectory() != null) {
+                long start = System.nanoTime();
+                membershipLog = new MembershipLog(this, config.getStateDirectory(),
+                        config.getSnapshotInterval(), config.getStateSyncMillis());
+                int records = membershipLog.replay();
+                System.out.println("Restored " + groupNames().size() + " groups and " + userGroups.size() + " users from "
+                        + records + " records in " + (System.nanoTime() - start) / 1000000 + " ms");
+                expireRestoredUsers(new ArrayList<>(userGroups.keySet()));
+            }
+            if (relay != null) {
+                relay.start();
+            }
+            if (!listen) {
+                return;
+            }
+            stats.register(config.getPort());
+            if (config.getMode() == ServerConfig.Mode.NIO) {
+                new NioChatServer(this, config.getPort(), config.getEventLoops()).run();
+            } else {
+                socket = new ServerSocket(config.getPort(), ACCEPT_BACKLOG);
+                connectionThreads = config.getMode() == ServerConfig.Mode.VIRTUAL
+                        ? Thread.ofVirtual().name("msgp-virtual-", 0)
+                        : Thread.ofPlatform().name("msgp-connection-", 0);
+                run();
+            }
         } catch(IOException ioe) {
             System.out.println(ioe);
         }
@@ -59,38 +172,86 @@ public class ChatServer implements Runnable {
         while (true) {
             // Wait for client's request to connect
             try {
+                Socket connectionSocket = socket.accept();
+                // Replies are written as soon as they are ready, pipelined clients wait on each one
+                connectionSocket.setTcpNoDelay(true);
                 // Create and start thread for each client
-                client = new ChatServerThread(this, socket.accept());
-                client.start();
+                client = new ChatServerThread(this, connectionSocket, connectionThreads);
+                connectionThreads.start(client);
             } catch(IOException ie) {
                 System.out.println("Acceptance Error: " + ie);
             }
         }
     }
 
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Create the OutboundQueue for a new connection, bounded as configured.
+     *
+     * @param onEnqueue called after a frame is queued, may be null
+     * @param onDisconnect called if the slow consumer policy disconnects the connection
+     * @return
+     */
+    public OutboundQueue createOutboundQueue(Runnable onEnqueue, Runnable onDisconnect) {
+        return new OutboundQueue(config.getOutboundLimit(), config.getSlowConsumerPolicy(), onEnqueue, onDisconnect);
+    }
+
+    /**
+     * Create a group with its history kept as configured. If its log cannot be opened the
+     * group keeps its history in memory. Called on the group's shard.
+     *
+     * @param name
+     * @return
+     */
+    private Group createGroup(String name) {
+        HistoryLimits limits = config.getHistoryLimits(name);
+        if (historyLog != null) {
+            try {
+                return new Group(name, historyLog.open(name, limits));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (config.getHistoryStorage() == ServerConfig.HistoryStorage.OFF_HEAP) {
+            return new Group(name, new OffHeapHistoryStore(limits));
+        }
+        return new Group(name, new HistoryBuffer(limits));
+    }
+
     /**
      * Attempt to add user to group and return status code.
+     * Creating the group and adding the member are each atomic, so concurrent joins
+     * of the same group never lose a member or create the group twice. A user another node
+     * of the federation has is refused with 400.
      *
      * @param user
      * @param group
      * @return
      */
-    public Response join(String user, String group, DataOutputStream outStream) {
-        // If user does not exist
-        if (!users.containsKey(user))
-            // Add user
-            users.put(user, outStream);
-        // If group does not exist
-        if (!groups.containsKey(group)) {
-            // Add group
-            groups.put(group, new Group(group));
+    public Response join(String user, String group, OutboundQueue outboundQueue) {
+        if (isRemoteUser(user)) {
+            return new Response(400);
         }
-        // If user is already a member of the group
-        if (groups.get(group).existsUser(user)) {
-            return new Response(201);
-        } else {
-            groups.get(group).addMember(user);
-            return new Response(200);
+        // Add user if user does not exist
+        if (users.putIfAbsent(user, outboundQueue) == null) {
+            userChanged(user);
+        }
+        ReentrantLock lock = membershipLock(user);
+        lock.lock();
+        try {
+            // Add group if group does not exist, then add the member
+            if (addMember(user, group)) {
+                log(MembershipLog.JOIN, user, group);
+                return new Response(200);
+            } else {
+                // User is already a member of the group
+                return new Response(201);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -103,14 +264,19 @@ public class ChatServer implements Runnable {
      */
     public Response leave(String user, String group) {
         // If group does not exist
-        if (!groups.containsKey(group))
+        if (shards.getGroup(group) == null)
             return new Response(400);
-        // If user is not a member
-        else if (!groups.get(group).existsUser(user))
-            return new Response(201);
-        else {
-            groups.get(group).removeMember(user);
-            return new Response(200);
+        ReentrantLock lock = membershipLock(user);
+        lock.lock();
+        try {
+            // If user was a member
+            if (removeMember(user, group)) {
+                log(MembershipLog.LEAVE, user, group);
+                return new Response(200);
+            } else
+                return new Response(201);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -122,19 +288,75 @@ public class ChatServer implements Runnable {
     public Response groups() {
         String members = "";
         Response response;
+        Collection<String> names = groupNames();
 
-        if (groups.isEmpty()) {
+        if (relay != null) {
+            // Groups on other nodes too, each listed once
+            names = new LinkedHashSet<>(names);
+            relay.addGroupsTo(names);
+        }
+        if (names.isEmpty()) {
             response = new Response(201);
         } else {
             // Append group names
-            for (Group group : groups.values()) {
-                members += group.getName() + "\n";
+            for (String name : names) {
+                members += name + "\n";
             }
             response = new Response(200 , members);
         }
         return response;
     }
 
+    /**
+     * Return status code and every group with its number of members if status code is 200,
+     * one "<group> <members>" line per group.
+     *
+     * @return
+     */
+    public Response counts() {
+        StringBuilder counts = new StringBuilder();
+        LinkedHashMap<String, Integer> sizes = new LinkedHashMap<>();
+        // One task per shard counts all of its groups
+        for (Shard shard : shards.getShards()) {
+            sizes.putAll(shard.call(() -> {
+                HashMap<String, Integer> shardSizes = new HashMap<>();
+                for (Group group : shard.getGroups()) {
+                    shardSizes.put(group.getName(), group.getSize());
+                }
+                return shardSizes;
+            }));
+        }
+        for (Map.Entry<String, Integer> group : sizes.entrySet()) {
+            int size = group.getValue();
+            if (relay != null) {
+                size += relay.countMembers(group.getKey());
+            }
+            counts.append(group.getKey()).append(' ').append(size).append('\n');
+        }
+        if (relay != null) {
+            HashSet<String> remoteGroups = new HashSet<>();
+            relay.addGroupsTo(remoteGroups);
+            for (String group : remoteGroups) {
+                if (!sizes.containsKey(group)) {
+                    counts.append(group).append(' ').append(relay.countMembers(group)).append('\n');
+                }
+            }
+        }
+        if (counts.length() == 0) {
+            return new Response(201);
+        }
+        return new Response(200, counts.toString());
+    }
+
+    /**
+     * Return status code and the server's metrics, one "name value" line each.
+     *
+     * @return
+     */
+    public Response stats() {
+        return new Response(200, stats.format());
+    }
+
     /**
      * Attempt to get users of a group and return status code.
      *
@@ -142,24 +364,42 @@ public class ChatServer implements Runnable {
      * @return
      */
     public Response users(String group) {
+        Group existingGroup = shards.getGroup(group);
+        ArrayList<String> members = existingGroup != null
+                ? shards.shardFor(group).call(existingGroup::getMembers) : null;
+        return usersReply(group, members);
+    }
+
+    /**
+     * @param group
+     * @param members the group's members on this node, null if the group is not on this node
+     * @return
+     */
+    private Response usersReply(String group, ArrayList<String> members) {
         String users = "";
-        Response response;
 
-        // If the group does not exist
-        if (!groups.containsKey(group)) {
+        // If the group does not exist here or on another node
+        if (members == null && (relay == null || !relay.hasGroup(group))) {
             return new Response(400);
         }
+        if (members == null) {
+            members = new ArrayList<>();
+        }
+        if (relay != null) {
+            // Members on other nodes too, each listed once
+            LinkedHashSet<String> allMembers = new LinkedHashSet<>(members);
+            relay.addMembersTo(group, allMembers);
+            members = new ArrayList<>(allMembers);
+        }
         // If the group does not have any members
-        if (groups.get(group).getMembers().isEmpty()) {
+        if (members.isEmpty()) {
             return new Response(201);
-        } else {
-            // Append user names to reply
-            for (String user : groups.get(group).getMembers() ) {
-                users += user + "\n";
-            }
-            response = new Response(200, users);
         }
-        return response;
+        // Append user names to reply
+        for (String user : members) {
+            users += user + "\n";
+        }
+        return new Response(200, users);
     }
 
     /**
@@ -169,134 +409,709 @@ public class ChatServer implements Runnable {
      * @return
      */
     public Response history(String group) {
-        String history = "";
-        Response response;
+        Group existingGroup = shards.getGroup(group);
 
         // If the group does not exist
-        if (!groups.containsKey(group)) {
-            response = new Response(400);
+        if (existingGroup == null) {
+            return new Response(400);
+        }
+        // Read on the shard, after the sends queued before this request
+        return historyReply(shards.shardFor(group).call(existingGroup::getHistory));
+    }
+
+    /**
+     * @param messages the group's whole history
+     * @return
+     */
+    private Response historyReply(ArrayList<String> messages) {
+        StringBuilder history = new StringBuilder();
         // If the group's history is empty
-        } else if (groups.get(group).getHistory().isEmpty()) {
-            response = new Response(201);
+        if (messages.isEmpty()) {
+            return new Response(201);
+        }
+        // Append each message to reply
+        for (String message : messages) {
+            history.append(message);
+        }
+        return new Response(200, history.toString());
+    }
+
+    /**
+     * Attempt to get one page of group history and return status code.
+     *
+     * The body starts with "next: <seq>", the sequence number to ask for the following page with,
+     * followed by up to limit messages with a sequence number of at least since. Messages evicted
+     * from the history are skipped. A page stops early once it holds Msgp.HISTORY_PAGE_BYTES,
+     * but always holds at least one message when sent in binary frames, which have room for any
+     * message. A text frame has no room for a message larger than that on its own, so for text
+     * frames it is left out and a "skipped: <seq> <bytes>" line after next: tells the client.
+     *
+     * @param group
+     * @param since
+     * @param limit
+     * @param textFrame whether the page is sent in a text frame
+     * @return 201 once there are no messages from since on
+     */
+    public Response history(String group, long since, int limit, boolean textFrame) {
+        Group existingGroup = shards.getGroup(group);
+
+        // If the group does not exist
+        if (existingGroup == null) {
+            return new Response(400);
+        }
+        // Read on the shard, after the sends queued before this request
+        return pageReply(shards.shardFor(group).call(() -> existingGroup.getHistory(since, limit)), since, textFrame);
+    }
+
+    /**
+     * @param entries the history read from since on
+     * @param since
+     * @param textFrame
+     * @return the page history(group, since, limit, textFrame) describes
+     */
+    private Response pageReply(ArrayList<HistoryEntry> entries, long since, boolean textFrame) {
+        StringBuilder skipped = new StringBuilder();
+        StringBuilder page = new StringBuilder();
+        // If there is no history from since on
+        if (entries.isEmpty()) {
+            return new Response(201);
+        }
+        int bytes = 0;
+        long next = since;
+        for (HistoryEntry entry : entries) {
+            // Too large for any text page
+            if (textFrame && entry.getBytes() > Msgp.HISTORY_PAGE_BYTES) {
+                skipped.append("skipped: ").append(entry.getSequence()).append(' ').append(entry.getBytes()).append('\n');
+                next = entry.getSequence() + 1;
+                continue;
+            }
+            if (bytes > 0 && bytes + entry.getBytes() > Msgp.HISTORY_PAGE_BYTES) {
+                break;
+            }
+            page.append(entry.getMessage());
+            bytes += entry.getBytes();
+            next = entry.getSequence() + 1;
+        }
+        return new Response(200, "next: " + next + "\n" + skipped + page);
+    }
+
+    /**
+     * Run consecutive requests of a batch that each touch one group: joins, leaves, users and
+     * history. Instead of a round trip to a shard per request, the requests of each shard run
+     * in one task, in the order they were given, and the shards run theirs at the same time.
+     * Requests on different groups do not depend on each other, so the replies are the ones
+     * the requests would have got one at a time. The membership locks of every user joining or
+     * leaving are held meanwhile, taken in the order publishMembership() takes them, so the
+     * changes are logged in the order they were made.
+     *
+     * @param requests
+     * @param outboundQueue queue of the connection the batch came from
+     * @return a reply for each request
+     */
+    public Response[] runGroupRequests(ArrayList<GroupRequest> requests, OutboundQueue outboundQueue) {
+        Response[] responses = new Response[requests.size()];
+        TreeSet<Integer> locks = new TreeSet<>();
+        LinkedHashMap<Shard, ArrayList<GroupRequest>> byShard = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            GroupRequest request = requests.get(i);
+            if (request.opcode == Msgp.JOIN) {
+                if (isRemoteUser(request.user)) {
+                    responses[i] = new Response(400);
+                    continue;
+                }
+                // Add user if user does not exist
+                if (users.putIfAbsent(request.user, outboundQueue) == null) {
+                    userChanged(request.user);
+                }
+            }
+            if (request.opcode == Msgp.JOIN || request.opcode == Msgp.LEAVE) {
+                locks.add(membershipLockIndex(request.user));
+            }
+            byShard.computeIfAbsent(shards.shardFor(request.group), shard -> new ArrayList<>()).add(request);
+        }
+
+        for (int lock : locks) {
+            membershipLocks[lock].lock();
+        }
+        try {
+            ArrayList<CompletableFuture<Boolean>> done = new ArrayList<>(byShard.size());
+            for (Map.Entry<Shard, ArrayList<GroupRequest>> shardRequests : byShard.entrySet()) {
+                Shard shard = shardRequests.getKey();
+                done.add(shard.submit(() -> {
+                    for (GroupRequest request : shardRequests.getValue()) {
+                        runOnShard(shard, request);
+                    }
+                    return true;
+                }));
+            }
+            for (CompletableFuture<Boolean> shardDone : done) {
+                shardDone.join();
+            }
+            for (int i = 0; i < requests.size(); i++) {
+                if (responses[i] == null) {
+                    responses[i] = reply(requests.get(i));
+                }
+            }
+        } finally {
+            for (int lock : locks.descendingSet()) {
+                membershipLocks[lock].unlock();
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Run a request of runGroupRequests() on its group's shard thread, keeping what it found.
+     *
+     * @param shard
+     * @param request
+     */
+    private void runOnShard(Shard shard, GroupRequest request) {
+        if (request.opcode == Msgp.JOIN) {
+            request.found = true;
+            request.changed = addMember(shard, request.user, request.group);
+            return;
+        }
+        Group group = shard.getGroup(request.group);
+        request.found = group != null;
+        if (group == null) {
+            return;
+        }
+        if (request.opcode == Msgp.LEAVE) {
+            request.changed = removeMember(shard, request.user, request.group);
+        } else if (request.opcode == Msgp.USERS) {
+            request.members = group.getMembers();
+        } else if (request.limit > 0) {
+            request.entries = group.getHistory(request.since, request.limit);
         } else {
-            // Append each message to reply
-            for (String message: groups.get(group).getHistory() ) {
-                history += message;
+            request.messages = group.getHistory();
+        }
+    }
+
+    /**
+     * The reply to a request of runGroupRequests() once its shard ran it, logging a change it made.
+     *
+     * @param request
+     * @return
+     */
+    private Response reply(GroupRequest request) {
+        if (request.opcode == Msgp.USERS) {
+            return usersReply(request.group, request.members);
+        }
+        if (!request.found) {
+            return new Response(400);
+        }
+        if (request.opcode == Msgp.JOIN || request.opcode == Msgp.LEAVE) {
+            if (!request.changed) {
+                return new Response(201);
             }
-            response = new Response(200, history);
+            log(request.opcode == Msgp.JOIN ? MembershipLog.JOIN : MembershipLog.LEAVE, request.user, request.group);
+            return new Response(200);
         }
-        return response;
+        if (request.limit > 0) {
+            return pageReply(request.entries, request.since, request.textFrame);
+        }
+        return historyReply(request.messages);
     }
 
     /**
      * Send a message to user(s) and group(s).
-     * Messages sent to a group will be added to group history.
      *
      * @param message
      * @return
      */
     public Response send(String message) {
-        ArrayList<DataOutputStream> outputStream = new ArrayList<>();
+        RequestParser request = new RequestParser();
+        if (!request.parse(Msgp.SEND, message)) {
+            return new Response(400);
+        }
+        return send(request);
+    }
+
+    /**
+     * Send a parsed message to user(s) and group(s).
+     * Messages sent to a group will be added to group history.
+     * Nothing is delivered or added to history unless every recipient exists, and a user
+     * reached through several recipients gets the message once.
+     * The message is encoded once per wire format and every recipient's OutboundQueue gets a
+     * read-only view of the same frame, it is written by the recipient's own writer.
+     * All state used while sending is local to the request, so any number of sends can run at once.
+     * Recipients on other nodes of the federation are sent the message by the Relay.
+     *
+     * @param request
+     * @return 400 if a recipient does not exist or nobody got the message, 200 with a
+     *         "failed: #<group>" line for each group that did not get it if others did
+     */
+    public Response send(RequestParser request) {
+        return deliver(request, false);
+    }
+
+    /**
+     * Deliver a message forwarded by another node of the federation to the recipients on this node.
+     *
+     * @param message
+     */
+    void deliverRelayed(String message) {
+        RequestParser request = new RequestParser();
+        if (request.parse(Msgp.SEND, message)) {
+            deliver(request, true);
+        }
+    }
 
-        setRecipients(message);
-        if((validateRecipients(recipients, message)).getReplyCode() == 400) {
+    /**
+     * Queue a message for its local recipients, and forward it to the other nodes unless it
+     * was relayed from one.
+     *
+     * Each group's history append and delivery to the members reached through it are one task
+     * on the group's shard. Sends to a group therefore reach every member in the order of the
+     * group's history, and a message that could not be added to the history is not delivered
+     * through the group. Users named directly and the other nodes are only sent the message
+     * once the tasks are done, and not at all if every group failed, so nobody has a message
+     * the sender was told was not sent.
+     *
+     * @param request
+     * @param relayed
+     * @return the reply send() describes
+     */
+    private Response deliver(RequestParser request, boolean relayed) {
+        String message = request.getRequest();
+        // Every recipient is checked before anything is committed
+        RecipientResolver.RecipientSet recipientSet = recipients.resolve(request, relayed);
+        if (recipientSet == null) {
             return new Response(400);
         }
+        stats.recordFanOut(recipientSet.getCount());
 
-        // Get DataOutputStream of all recipient users
-        for (String recipient: recipients) {
-            outputStream.add(users.get(recipient));
+        Group[] groups = recipientSet.getGroups();
+        ArrayList<CompletableFuture<Boolean>> stored = new ArrayList<>(groups.length);
+        for (int i = 0; i < groups.length; i++) {
+            Group group = groups[i];
+            OutboundQueue[] members = recipientSet.getMembers(i);
+            stored.add(shards.shardFor(group.getName()).submit(() -> {
+                if (group.addHistory(message) < 0) {
+                    System.out.println("Could not add a message to the history of " + group.getName());
+                    return false;
+                }
+                // Frame encoded for each wire format in use among the members, by this task only
+                ByteBuffer[] frames = new ByteBuffer[MsgpCodec.COUNT];
+                for (OutboundQueue outboundQueue : members) {
+                    enqueue(outboundQueue, message, frames);
+                }
+                return true;
+            }));
         }
-        // Send the message to all recipient users
-        for (DataOutputStream dataOutputStream: outputStream) {
-            try {
-                dataOutputStream.writeUTF(message);
+        // Groups whose history the message could not be added to
+        StringBuilder failed = null;
+        int failures = 0;
+        for (int i = 0; i < groups.length; i++) {
+            if (!stored.get(i).join()) {
+                if (failed == null) {
+                    failed = new StringBuilder();
+                }
+                failed.append("failed: #").append(groups[i].getName()).append('\n');
+                failures++;
             }
-            catch (IOException e) {
-                e.printStackTrace();
+        }
+        if (failures > 0 && failures == groups.length) {
+            return new Response(400);
+        }
+        // Users named directly have no group order to keep
+        ByteBuffer[] frames = new ByteBuffer[MsgpCodec.COUNT];
+        for (OutboundQueue outboundQueue : recipientSet.getDirect()) {
+            enqueue(outboundQueue, message, frames);
+        }
+        if (relay != null && !relayed) {
+            relay.forward(request);
+        }
+        return failed == null ? new Response(200) : new Response(200, failed.toString());
+    }
+
+    /**
+     * Queue a message, encoding it for the queue's wire format the first time that format is needed.
+     *
+     * @param outboundQueue
+     * @param message
+     * @param frames frame encoded for each wire format so far
+     */
+    private void enqueue(OutboundQueue outboundQueue, String message, ByteBuffer[] frames) {
+        MsgpCodec codec = outboundQueue.getCodec();
+        try {
+            if (frames[codec.getId()] == null) {
+                frames[codec.getId()] = codec.encode(Msgp.PUSH, Msgp.SEND, 0, message).asReadOnlyBuffer();
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
         }
-        return new Response(200);
+        outboundQueue.enqueue(frames[codec.getId()].duplicate());
     }
 
     /**
      * Add user to list of users.
      *
      * @param userName
-     * @param dataOutputStream
+     * @param outboundQueue
      * @return
      */
-    public Response addUserToServer(String userName, DataOutputStream dataOutputStream) {
-        users.put(userName, dataOutputStream);
+    public Response addUserToServer(String userName, OutboundQueue outboundQueue) {
+        if (isRemoteUser(userName)) {
+            return new Response(400);
+        }
+        users.put(userName, outboundQueue);
+        userChanged(userName);
+        ReentrantLock lock = membershipLock(userName);
+        lock.lock();
+        try {
+            // Known users have an entry even if they are in no group
+            if (userGroups.putIfAbsent(userName, ConcurrentHashMap.newKeySet()) == null) {
+                log(MembershipLog.ADD_USER, userName, "");
+            }
+        } finally {
+            lock.unlock();
+        }
         return new Response(200);
     }
 
     /**
-     * Ensure all users and groups exist.
-     * Get users from groups.
-     * Add message to each group history.
+     * Remove a user whose connection closed, along with the user's group memberships.
+     * Nothing happens if the user has reconnected with a different OutboundQueue since.
+     * Waits on a membership lock and on shards, so it is called from the connection's thread,
+     * never from the shard or EventLoop thread that noticed the connection closing.
      *
-     * @param nonValidatedRecipients
-     * @param message
-     * @return
+     * @param userName
+     * @param outboundQueue the queue of the connection that closed
      */
-    private Response validateRecipients(ArrayList<String> nonValidatedRecipients, String message) {
-        Response response = new Response(200);
-        ArrayList<String> validatedRecipients = new ArrayList<>();
-
-        for (String recipient: nonValidatedRecipients) {
-            // If the recipient is a user
-            if (recipient.startsWith("@")) {
-                // Validate user existence
-                if (users.containsKey(recipient.substring(1))) {
-                    validatedRecipients.add(recipient.substring(1));
-                } else {
-                    return new Response(400);
+    public void disconnect(String userName, OutboundQueue outboundQueue) {
+        if (!users.remove(userName, outboundQueue)) {
+            return;
+        }
+        userChanged(userName);
+        ReentrantLock lock = membershipLock(userName);
+        lock.lock();
+        try {
+            removeUser(userName);
+            log(MembershipLog.DISCONNECT, userName, "");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Apply a change read back from the MembershipLog while restoring state.
+     *
+     * @param operation
+     * @param user
+     * @param group
+     */
+    void applyMembership(int operation, String user, String group) {
+        if (operation == MembershipLog.JOIN) {
+            addMember(user, group);
+        } else if (operation == MembershipLog.LEAVE) {
+            removeMember(user, group);
+        } else if (operation == MembershipLog.ADD_USER) {
+            userGroups.putIfAbsent(user, ConcurrentHashMap.newKeySet());
+        } else if (operation == MembershipLog.DISCONNECT) {
+            removeUser(user);
+        } else if (operation == MembershipLog.GROUP) {
+            addGroup(group);
+        }
+    }
+
+    /**
+     * Once the reconnect grace period is over, remove the restored users that have not
+     * reconnected, as disconnect() would have had the server kept running. Until then they are
+     * offline members: listed and counted in their groups, but sent nothing.
+     *
+     * @param restored
+     */
+    private void expireRestoredUsers(ArrayList<String> restored) {
+        if (restored.isEmpty()) {
+            return;
+        }
+        Thread.ofPlatform().name("msgp-restore-expiry").daemon().start(() -> {
+            try {
+                Thread.sleep(config.getReconnectGraceMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+            int expired = 0;
+            for (String user : restored) {
+                ReentrantLock lock = membershipLock(user);
+                lock.lock();
+                try {
+                    // A user that reconnected, or reconnected and left again, is left alone
+                    if (!users.containsKey(user) && userGroups.containsKey(user)) {
+                        removeUser(user);
+                        log(MembershipLog.DISCONNECT, user, "");
+                        expired++;
+                    }
+                } finally {
+                    lock.unlock();
                 }
-            // If recipient is a group
-            } else {
-                // Validate group existence and add history if valid
-                if(groups.containsKey(recipient.substring(1))) {
-                    groups.get(recipient.substring(1)).getHistory().add(message);
-                    validatedRecipients.addAll(groups.get(recipient.substring(1)).getMembers());
-                } else {
-                    return new Response(400);
+            }
+            System.out.println("Removed " + expired + " restored users that did not reconnect");
+        });
+    }
+
+    /**
+     * Write the current groups, users and memberships as records for a MembershipLog snapshot.
+     * Changes made while writing are also in the log file the snapshot is replayed with.
+     *
+     * @param log
+     * @param out
+     * @throws IOException
+     */
+    void writeMembership(MembershipLog log, DataOutputStream out) throws IOException {
+        for (String group : groupNames()) {
+            log.write(out, MembershipLog.GROUP, "", group);
+        }
+        for (Map.Entry<String, Set<String>> user : userGroups.entrySet()) {
+            log.write(out, MembershipLog.ADD_USER, user.getKey(), "");
+            for (String group : user.getValue()) {
+                log.write(out, MembershipLog.JOIN, user.getKey(), group);
+            }
+        }
+    }
+
+    /**
+     * Bring up a link to a peer: queue every group, user and membership on it, then have
+     * the relay send changes to it from now on. Every membership lock is held meanwhile, so
+     * each change is either part of the state or queued after it.
+     *
+     * @param relay
+     * @param peer
+     * @param link
+     */
+    void publishMembership(Relay relay, Relay.Peer peer, OutboundQueue link) {
+        for (ReentrantLock lock : membershipLocks) {
+            lock.lock();
+        }
+        try {
+            for (String group : groupNames()) {
+                relay.publish(link, MembershipLog.GROUP, "", group);
+            }
+            for (Map.Entry<String, Set<String>> user : userGroups.entrySet()) {
+                relay.publish(link, MembershipLog.ADD_USER, user.getKey(), "");
+                for (String group : user.getValue()) {
+                    relay.publish(link, MembershipLog.JOIN, user.getKey(), group);
                 }
             }
+            relay.connected(peer, link);
+        } finally {
+            for (ReentrantLock lock : membershipLocks) {
+                lock.unlock();
+            }
         }
-        recipients = validatedRecipients;
-        return response;
     }
 
     /**
-     *  Set recipients instance variable by getting group and user recipients from request.
+     * Create a group on its shard if it does not exist.
      *
-     * @param request
+     * @param group
+     */
+    private void addGroup(String group) {
+        Shard shard = shards.shardFor(group);
+        shard.call(() -> shard.addGroup(group, this::createGroup));
+    }
+
+    /**
+     * Number of messages in each group's history, read on each shard.
+     *
+     * @return
+     */
+    Histogram historySizes() {
+        Histogram sizes = new Histogram();
+        for (Shard shard : shards.getShards()) {
+            shard.call(() -> {
+                for (Group group : shard.getGroups()) {
+                    sizes.record(group.getHistorySize());
+                }
+                return sizes;
+            });
+        }
+        return sizes;
+    }
+
+    /**
+     * Names of the groups on every shard.
+     *
+     * @return
+     */
+    private ArrayList<String> groupNames() {
+        ArrayList<String> names = new ArrayList<>();
+        for (Shard shard : shards.getShards()) {
+            for (Group group : shard.getGroups()) {
+                names.add(group.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Add a member on the group's shard, creating the group if it does not exist.
+     *
+     * @param user
+     * @param group
+     * @return false if user was already a member
+     */
+    private boolean addMember(String user, String group) {
+        Shard shard = shards.shardFor(group);
+        return shard.call(() -> addMember(shard, user, group));
+    }
+
+    /**
+     * addMember() on the group's shard thread.
+     *
+     * @param shard
+     * @param user
+     * @param group
+     * @return
+     */
+    private boolean addMember(Shard shard, String user, String group) {
+        if (shard.addGroup(group, this::createGroup).addMember(user)) {
+            userGroups.computeIfAbsent(user, name -> ConcurrentHashMap.newKeySet()).add(group);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove a member on the group's shard.
+     *
+     * @param user
+     * @param group
+     * @return false if user was not a member or the group does not exist
+     */
+    private boolean removeMember(String user, String group) {
+        Shard shard = shards.shardFor(group);
+        return shard.call(() -> removeMember(shard, user, group));
+    }
+
+    /**
+     * removeMember() on the group's shard thread.
+     *
+     * @param shard
+     * @param user
+     * @param group
      * @return
      */
-    private void setRecipients(String request) {
-        ArrayList<String> recipients = new ArrayList<>();
+    private boolean removeMember(Shard shard, String user, String group) {
+        Group existingGroup = shard.getGroup(group);
+        if (existingGroup == null || !existingGroup.removeMember(user)) {
+            return false;
+        }
+        Set<String> memberOf = userGroups.get(user);
+        if (memberOf != null)
+            memberOf.remove(group);
+        return true;
+    }
+
+    /**
+     * Remove a user and the user's group memberships. The shards remove the memberships
+     * without being waited for, anything passed to a shard later sees them removed.
+     *
+     * @param user
+     */
+    private void removeUser(String user) {
+        // Only visit the groups the user is in
+        Set<String> memberOf = userGroups.remove(user);
+        if (memberOf != null) {
+            for (String group : memberOf) {
+                Shard shard = shards.shardFor(group);
+                shard.execute(() -> shard.getGroup(group).removeMember(user));
+            }
+        }
+    }
+
+    /**
+     * User names are unique across a federation, a name another node has cannot be used here.
+     *
+     * @param user
+     * @return whether user is connected to another node and not to this one
+     */
+    private boolean isRemoteUser(String user) {
+        return relay != null && !users.containsKey(user) && relay.hasUser(user);
+    }
+
+    /**
+     * Invalidate the recipients resolved through the groups of a user that connected or
+     * disconnected, as the user's queue changed.
+     *
+     * @param user
+     */
+    private void userChanged(String user) {
+        Set<String> memberOf = userGroups.get(user);
+        if (memberOf != null) {
+            for (String group : memberOf) {
+                Group existingGroup = shards.getGroup(group);
+                if (existingGroup != null) {
+                    existingGroup.memberChanged();
+                }
+            }
+        }
+    }
+
+    private ReentrantLock membershipLock(String user) {
+        return membershipLocks[membershipLockIndex(user)];
+    }
+
+    private int membershipLockIndex(String user) {
+        return user.hashCode() & (membershipLocks.length - 1);
+    }
+
+    /**
+     * Record a change in the MembershipLog and tell the other nodes about it.
+     *
+     * @param operation
+     * @param user
+     * @param group
+     */
+    private void log(int operation, String user, String group) {
+        if (membershipLog != null) {
+            membershipLog.record(operation, user, group);
+        }
+        if (relay != null) {
+            relay.publish(operation, user, group);
+        }
+    }
+
+    /**
+     * A join, leave, users or history request of a batch, and what its group's shard found
+     * when running it.
+     */
+    static class GroupRequest {
+        private int opcode;
+        private String user;
+        private String group;
+        private long since;
+        private int limit;
+        private boolean textFrame;
+        // Written by the shard's thread, read once its task is done
+        private boolean found;
+        private boolean changed;
+        private ArrayList<String> members;
+        private ArrayList<String> messages;
+        private ArrayList<HistoryEntry> entries;
 
         /**
-         * According to the following format:
-         *
-         * msgp send \n
-         * from: name \n
-         * to: @name \n\n
-         * to: @name \n\n
-         * message \n\n
-         *
-         * By splitting the request by \n we can look at the indices that start with 'to:'
+         * @param opcode Msgp.JOIN, LEAVE, USERS or HISTORY
+         * @param user the user joining or leaving, null otherwise
+         * @param group
+         * @param since first message of a history page
+         * @param limit messages in a history page, 0 for the whole history
+         * @param textFrame whether a history page is sent in a text frame
          */
-        String[] parsedRequest = request.split("\n");
+        GroupRequest(int opcode, String user, String group, long since, int limit, boolean textFrame) {
+            this.opcode = opcode;
+            this.user = user;
+            this.group = group;
+            this.since = since;
+            this.limit = limit;
+            this.textFrame = textFrame;
+        }
 
-        for (int i = 0; i < parsedRequest.length; i++) {
-            // If the string is at least 4 characters and starts with 'to:'
-            if (parsedRequest[i].length() > 4 && parsedRequest[i].substring(0, 3).equals("to:")) {
-                // Remove 'to:' and add user or group to recipients list
-                recipients.add(parsedRequest[i].substring(4));
-            }
+        public int getOpcode() {
+            return opcode;
         }
-        this.recipients = recipients;
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,8 @@
 /**
- * ChatServerThread is a thread that processes client requests using the ChatServer and returns a Response.
- * Each thread refers to the same ChatServer, but a different Client.
+ * ChatServerThread processes client requests using the ChatServer and returns a Response.
+ * Each one refers to the same ChatServer, but a different Client, and runs on its own
+ * platform or virtual thread depending on the server mode. Everything written to the client
+ * goes through the connection's OutboundQueue, which a separate OutboundWriter drains.
  */
 
 package csci4311.chat;
@@ -8,85 +10,76 @@ package csci4311.chat;
 import java.io.*;
 import java.net.*;
 
-public class ChatServerThread extends Thread {
+public class ChatServerThread implements Runnable {
 
     private ChatServer chatServer;
+    private Socket connectionSocket;
+    private Thread.Builder writerThreads;
     private DataInputStream dataInputStream;
-    private DataOutputStream dataOutputStream;
+    private OutputStream outputStream;
+    private OutboundQueue outboundQueue;
+    private RequestHandler requestHandler;
 
-    public ChatServerThread(ChatServer server, Socket connectionSocket) {
+    /**
+     * @param server
+     * @param connectionSocket
+     * @param writerThreads builds the thread the connection's OutboundWriter runs on
+     */
+    public ChatServerThread(ChatServer server, Socket connectionSocket, Thread.Builder writerThreads) {
         // Instantiate instance variables
         this.chatServer = server;
+        this.connectionSocket = connectionSocket;
+        this.writerThreads = writerThreads;
+        this.outboundQueue = server.createOutboundQueue(null, this::disconnect);
         try {
-            dataInputStream = new DataInputStream(connectionSocket.getInputStream());
-            dataOutputStream = new DataOutputStream(connectionSocket.getOutputStream());
+            // Count the bytes each read from the socket returns
+            InputStream socketInput = new FilterInputStream(connectionSocket.getInputStream()) {
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    int read = super.read(bytes, offset, length);
+                    if (read > 0) {
+                        server.getStats().countRead(read);
+                    }
+                    return read;
+                }
+            };
+            // Codecs read a frame a few bytes at a time
+            dataInputStream = new DataInputStream(new BufferedInputStream(socketInput));
+            outputStream = connectionSocket.getOutputStream();
+            requestHandler = new RequestHandler(server, outboundQueue);
         } catch(IOException e) {
             e.printStackTrace();
         }
     }
 
     public void run() {
-        String response;
-        String request;
+        MsgpFrame request;
+        chatServer.getStats().connected();
+        writerThreads.start(new OutboundWriter(outboundQueue, outputStream));
         try {
             while(true) {
-                // Get the client request
-                request = dataInputStream.readUTF();
-                // Parse client request
-                String[] parsedRequest = request.split(" ");
-                // Process request
-                if(parsedRequest[1].equals("join")) {
-                    response = evaluateResponse(chatServer.join(parsedRequest[2], parsedRequest[3], dataOutputStream));
-                } else if(parsedRequest[1].equals("leave")) {
-                    response = evaluateResponse(chatServer.leave(parsedRequest[2], parsedRequest[3]));
-                } else if(parsedRequest[1].equals("groups")) {
-                    response = evaluateResponseWithBody(chatServer.groups());
-                } else if(parsedRequest[1].equals("users")) {
-                    response = evaluateResponseWithBody(chatServer.users(parsedRequest[2]));
-                } else if(parsedRequest[1].equals("history")) {
-                    response = evaluateResponseWithBody(chatServer.history(parsedRequest[2]));
-                } else if (parsedRequest[1].equals("addUser")) {
-                    response = evaluateResponseWithBody(chatServer.addUserToServer(parsedRequest[2], dataOutputStream));
-                } else {
-                    response = evaluateResponse(chatServer.send(request));
-                }
-                // Write response to DataOutputStream
-                dataOutputStream.writeUTF(response);
+                // Get the client request in the connection's current wire format
+                request = outboundQueue.getCodec().read(dataInputStream);
+                // Process request and queue response for the writer
+                requestHandler.handle(request);
             }
         } catch( IOException ex) {
             System.out.println("The follow error occurred: " + ex);
+        } finally {
+            // Stop the writer, messages sent to this connection from now on are dropped
+            outboundQueue.close();
+            requestHandler.disconnect();
+            chatServer.getStats().disconnected();
         }
     }
 
     /**
-     * Based on response ChatServer response, return response to message protocol.
-     *
-     * @param response
-     * @return
+     * Close the socket, which ends the blocking read in run().
      */
-    private String evaluateResponse(Response response) {
-        if(response.getReplyCode() == 400) {
-            return "msgp 400 Error";
-        } else if(response.getReplyCode() == 201) {
-            return "msgp 201 No result";
-        } else {
-            return "msgp 200 OK";
-        }
-    }
-
-    /**
-     * Based on response from ChatServer resopnse, return response to message protocol with body.
-     *
-     * @param response
-     * @return
-     */
-    private String evaluateResponseWithBody(Response response) {
-        if(response.getReplyCode() == 400) {
-            return "msgp 400 Error";
-        } else if(response.getReplyCode() == 201) {
-            return "msgp 201 No result";
-        } else {
-            return "msgp 200 OK\n" + response.getBody();
+    private void disconnect() {
+        try {
+            connectionSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
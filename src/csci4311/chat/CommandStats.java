@@ -0,0 +1,52 @@
+/**
+ * Latency of one msgp command, from its request being decoded to its reply being queued.
+ */
+
+package csci4311.chat;
+
+public class CommandStats implements CommandStatsMBean {
+
+    private String name;
+    private Histogram latency;
+
+    public CommandStats(String name) {
+        this.name = name;
+        this.latency = new Histogram();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param nanos time taken by one request
+     */
+    public void record(long nanos) {
+        latency.record(nanos);
+    }
+
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    public long getMeanMicros() {
+        long count = latency.getCount();
+        return count == 0 ? 0 : latency.getSum() / count / 1000;
+    }
+
+    public long getP50Micros() {
+        return latency.getPercentile(0.5) / 1000;
+    }
+
+    public long getP99Micros() {
+        return latency.getPercentile(0.99) / 1000;
+    }
+
+    public long getP999Micros() {
+        return latency.getPercentile(0.999) / 1000;
+    }
+
+    public long getMaxMicros() {
+        return latency.getMax() / 1000;
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * JMX view of the latency of one msgp command, as recorded by CommandStats.
+ */
+
+package csci4311.chat;
+
+public interface CommandStatsMBean {
+
+    long getCount();
+
+    long getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    long getMaxMicros();
+}
@@ -0,0 +1,110 @@
+/**
+ * Binary msgp frames whose larger payloads are compressed, negotiated with
+ * "msgp hello binary deflate".
+ *
+ * Payloads of at least threshold bytes are deflated on their own, with the COMPRESSED bit set
+ * in the frame's type, whenever that makes them smaller. Every frame is compressed with the
+ * same preset DICTIONARY of msgp text, so even a single message or history page starts with
+ * its headers already known, and a frame encoded once can still be sent to every connection
+ * using this codec.
+ *
+ * Deflaters and inflaters hold native memory and are slow to create, they are kept in pools
+ * and reused.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+public class DeflateCodec extends BinaryCodec {
+
+    // Text most frames start with, the most common last as it is the cheapest to refer to
+    private static final byte[] DICTIONARY = ("msgp users\nmsgp groups\nmsgp 201 No result\n"
+            + "msgp 400 Error\nmsgp history\nnext: \nmsgp 200 OK\n\nmsgp send\nfrom: \nto: #\n\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private int threshold;
+    private ConcurrentLinkedQueue<Deflater> deflaters;
+    private ConcurrentLinkedQueue<Inflater> inflaters;
+
+    /**
+     * @param id
+     * @param threshold smallest payload in bytes that is compressed
+     */
+    public DeflateCodec(int id, int threshold) {
+        super(id);
+        this.threshold = threshold;
+        this.deflaters = new ConcurrentLinkedQueue<>();
+        this.inflaters = new ConcurrentLinkedQueue<>();
+    }
+
+    public ByteBuffer encode(int type, int opcode, int requestId, String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < threshold) {
+            return encode(type, opcode, requestId, bytes, bytes.length);
+        }
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater();
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(bytes);
+            deflater.finish();
+            // Only worth sending compressed if it is smaller
+            byte[] compressed = new byte[bytes.length];
+            int length = 0;
+            while (!deflater.finished() && length < compressed.length) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            if (!deflater.finished()) {
+                return encode(type, opcode, requestId, bytes, bytes.length);
+            }
+            return encode(type | COMPRESSED, opcode, requestId, compressed, length);
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    protected String decodePayload(int type, byte[] payload, int offset, int length) throws IOException {
+        if ((type & COMPRESSED) == 0) {
+            return new String(payload, offset, length, StandardCharsets.UTF_8);
+        }
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(payload, offset, length);
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(length * 4);
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int inflatedLength = inflater.inflate(chunk);
+                if (inflatedLength == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        throw new ProtocolException("truncated compressed frame");
+                    }
+                }
+                inflated.write(chunk, 0, inflatedLength);
+                // Refuse payloads that would not have fit in an uncompressed frame
+                if (inflated.size() > Msgp.MAX_FRAME_LENGTH) {
+                    throw new ProtocolException("compressed frame too long");
+                }
+            }
+            return inflated.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new ProtocolException("invalid compressed frame: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * A single selector thread serving many NioConnections.
+ * Other threads never touch the selector directly, they queue new channels,
+ * connections with pending writes and connections to resume reading, and wake the selector up.
+ * The loop never waits on anything but the selector, requests are processed off the loop.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class EventLoop extends Thread {
+
+    private ChatServer chatServer;
+    private Selector selector;
+    private ConcurrentLinkedQueue<SocketChannel> pendingChannels;
+    private ConcurrentLinkedQueue<NioConnection> pendingWrites;
+    private ConcurrentLinkedQueue<NioConnection> pendingResumes;
+
+    public EventLoop(ChatServer chatServer, int id) throws IOException {
+        super("msgp-event-loop-" + id);
+        this.chatServer = chatServer;
+        this.selector = Selector.open();
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.pendingResumes = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Hand a newly accepted channel to this loop. Safe to call from any thread.
+     *
+     * @param channel
+     */
+    public void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Ask the loop to write a connection's queued frames. Safe to call from any thread.
+     *
+     * @param connection
+     */
+    public void requestWrite(NioConnection connection) {
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Ask the loop to continue reading a connection whose pending requests have been processed.
+     * Safe to call from any thread.
+     *
+     * @param connection
+     */
+    public void requestResume(NioConnection connection) {
+        pendingResumes.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Wait for channels to become readable or writable and process them.
+     */
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                registerPendingChannels();
+                writePendingConnections();
+                resumePendingConnections();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // A bad connection must not take the whole loop down with it
+                        System.out.println("The follow error occurred: " + e);
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Register channels accepted since the last select.
+     */
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(chatServer, this, channel, key);
+                connection.start();
+                key.attach(connection);
+            } catch (IOException e) {
+                System.out.println("Registration Error: " + e);
+            }
+        }
+    }
+
+    /**
+     * Continue reading connections whose pending requests were processed since the last select.
+     */
+    private void resumePendingConnections() {
+        NioConnection connection;
+        while ((connection = pendingResumes.poll()) != null) {
+            try {
+                connection.resume();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("The follow error occurred: " + e);
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Flush connections that had frames queued since the last select.
+     */
+    private void writePendingConnections() {
+        NioConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            try {
+                connection.write();
+            } catch (IOException e) {
+                System.out.println("The follow error occurred: " + e);
+                connection.close();
+            }
+        }
+    }
+}
@@ -1,17 +1,34 @@
 package csci4311.chat;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
+/**
+ * A chat group's members and history.
+ * Members are kept in a hash set in the order they joined, so membership checks do not
+ * depend on the size of the group. Only the thread of the Shard that owns the group uses its
+ * members, so they need no lock.
+ * History is kept by a HistoryStore, which does its own locking.
+ * Getters return copies that stay valid while the shard keeps changing the group.
+ * The group's version changes with its members, and when one of them connects or disconnects,
+ * so what was worked out from the members can be checked for still being current from any thread.
+ */
 public class Group {
 
     private String name;
-    private ArrayList<String> members;
-    private ArrayList<String> history;
+    private LinkedHashSet<String> members;
+    private HistoryStore history;
+    private AtomicLong version;
 
-    public Group(String name) {
+    /**
+     * @param name
+     * @param history where the group's history is kept
+     */
+    public Group(String name, HistoryStore history) {
         this.name = name;
-        members = new ArrayList<>();
-        history = new ArrayList<>();
+        members = new LinkedHashSet<>();
+        this.history = history;
+        this.version = new AtomicLong();
     }
 
     public String getName() {
@@ -19,15 +36,64 @@ public class Group {
     }
 
     public ArrayList<String> getMembers() {
-        return this.members;
+        return new ArrayList<>(this.members);
+    }
+
+    /**
+     * Add the group's members to a collection without copying them into a new list.
+     *
+     * @param names
+     */
+    public void addMembersTo(Collection<String> names) {
+        // addAll() would copy the members into an array first
+        for (String member : this.members) {
+            names.add(member);
+        }
     }
 
     public int getSize() {
         return this.members.size();
     }
 
+    /**
+     * @return messages still kept in the group's history
+     */
+    public int getHistorySize() {
+        return history.size();
+    }
+
+    /**
+     * Messages still kept in the group's history, oldest first.
+     *
+     * @return
+     */
     public ArrayList<String> getHistory() {
-        return this.history;
+        ArrayList<String> messages = new ArrayList<>();
+        for (HistoryEntry entry : history.read(0, Integer.MAX_VALUE)) {
+            messages.add(entry.getMessage());
+        }
+        return messages;
+    }
+
+    /**
+     * Up to limit messages of the group's history with a sequence number of at least since, oldest first.
+     *
+     * @param since
+     * @param limit
+     * @return
+     */
+    public ArrayList<HistoryEntry> getHistory(long since, int limit) {
+        return history.read(since, limit);
+    }
+
+    /**
+     * Add message to group history, evicting the oldest messages beyond the group's limits.
+     *
+     * @param message
+     * @return the message's sequence number in the group
+     */
+    public long addHistory(String message) {
+        return history.append(message);
     }
 
     /**
@@ -44,17 +110,42 @@ public class Group {
      * Remove member from group.
      *
      * @param user
+     * @return false if user was not a member
      */
-    public void removeMember (String user) {
-        members.remove(user);
+    public boolean removeMember (String user) {
+        if (!members.remove(user)) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
     }
 
     /**
      * Add member to group
      *
      * @param user
+     * @return false if user was already a member
+     */
+    public boolean addMember (String user) {
+        if (!members.add(user)) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Mark the group changed when one of its members connects or disconnects, which changes
+     * the queue the member is reached through. May be called from any thread.
+     */
+    public void memberChanged() {
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return changes every time the members or how they are reached change
      */
-    public void addMember (String user) {
-        members.add(user);
+    public long getVersion() {
+        return version.get();
     }
-}
\ No newline at end of file
+}
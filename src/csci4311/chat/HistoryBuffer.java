@@ -0,0 +1,150 @@
+/**
+ * A group's history as a ring buffer bounded by message count and bytes.
+ *
+ * Every message gets the next sequence number and is stored in slot sequence % capacity,
+ * so appending and evicting take constant time. The array starts small and doubles up to
+ * the message limit.
+ *
+ * Appends take a lock, readers never do: entries are immutable and published before the
+ * tail moves past them, and a reader skips any slot whose entry does not carry the sequence
+ * it expects, which is how it notices a message was evicted while it was reading.
+ */
+
+package csci4311.chat;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class HistoryBuffer implements HistoryStore {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private HistoryLimits limits;
+    private volatile AtomicReferenceArray<HistoryEntry> slots;
+    // Sequence of the oldest message kept
+    private volatile long head;
+    // Sequence the next message will get
+    private volatile long tail;
+    // Bytes of the messages kept, only used while holding appendLock
+    private long bytes;
+    private ReentrantLock appendLock;
+
+    public HistoryBuffer(HistoryLimits limits) {
+        this.limits = limits;
+        this.slots = new AtomicReferenceArray<>(Math.min(INITIAL_CAPACITY, limits.getMaxMessages()));
+        this.appendLock = new ReentrantLock();
+    }
+
+    /**
+     * Add a message, dropping the oldest messages if a limit is exceeded.
+     * The newest message is always kept, even if it alone is over the byte limit.
+     *
+     * @param message
+     * @return the message's sequence number
+     */
+    public long append(String message) {
+        appendLock.lock();
+        try {
+            long sequence = tail;
+            HistoryEntry entry = new HistoryEntry(sequence, message);
+
+            if (sequence - head == slots.length()) {
+                if (slots.length() < limits.getMaxMessages()) {
+                    grow();
+                } else {
+                    evictOldest();
+                }
+            }
+            slots.set(index(slots, sequence), entry);
+            bytes += entry.getBytes();
+            while (bytes > limits.getMaxBytes() && head < sequence) {
+                evictOldest();
+            }
+            // Publish the entry to readers
+            tail = sequence + 1;
+            return sequence;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Messages with a sequence number of at least since, oldest first.
+     *
+     * @param since
+     * @param limit maximum number of messages returned
+     * @return
+     */
+    public ArrayList<HistoryEntry> read(long since, int limit) {
+        ArrayList<HistoryEntry> entries = new ArrayList<>();
+        // Tail is read before the slots, so every sequence below it is in this array
+        long end = tail;
+        long start = Math.max(head, since);
+        AtomicReferenceArray<HistoryEntry> current = slots;
+
+        for (long sequence = start; sequence < end && entries.size() < limit; sequence++) {
+            HistoryEntry entry = current.get(index(current, sequence));
+            // Skip messages evicted since start was read
+            if (entry != null && entry.getSequence() == sequence) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Sequence number of the oldest message kept.
+     *
+     * @return
+     */
+    public long getFirstSequence() {
+        return head;
+    }
+
+    /**
+     * Sequence number the next message will get.
+     *
+     * @return
+     */
+    public long getNextSequence() {
+        return tail;
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * Drop the oldest message. Called with appendLock held.
+     */
+    private void evictOldest() {
+        int index = index(slots, head);
+        HistoryEntry oldest = slots.get(index);
+        bytes -= oldest.getBytes();
+        // Let the message be collected now instead of when its slot is reused
+        slots.compareAndSet(index, oldest, null);
+        head++;
+    }
+
+    /**
+     * Double the array, up to the message limit. Called with appendLock held.
+     * Readers holding the old array still find every entry they can see there.
+     */
+    private void grow() {
+        AtomicReferenceArray<HistoryEntry> grown =
+                new AtomicReferenceArray<>((int) Math.min((long) slots.length() * 2, limits.getMaxMessages()));
+        for (long sequence = head; sequence < tail; sequence++) {
+            grown.set(index(grown, sequence), slots.get(index(slots, sequence)));
+        }
+        slots = grown;
+    }
+
+    private static int index(AtomicReferenceArray<HistoryEntry> array, long sequence) {
+        return (int) (sequence % array.length());
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * A message kept in a group's history and its sequence number within the group.
+ */
+
+package csci4311.chat;
+
+public class HistoryEntry {
+
+    private long sequence;
+    private String message;
+    private int bytes;
+
+    public HistoryEntry(long sequence, String message) {
+        this.sequence = sequence;
+        this.message = message;
+        this.bytes = encodedLength(message);
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Size of the message on the wire, used for the history byte limit.
+     *
+     * @return
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Bytes the message takes in the modified UTF-8 of writeUTF(): the null character takes two
+     * bytes and each half of a surrogate pair three. Every HistoryStore counts its byte limit
+     * with this, so limits and history pages agree whatever store a group uses.
+     *
+     * @param message
+     * @return
+     */
+    static int encodedLength(String message) {
+        int length = message.length();
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= 0x80 || c == 0) {
+                length += (c >= 0x800) ? 2 : 1;
+            }
+        }
+        return length;
+    }
+}
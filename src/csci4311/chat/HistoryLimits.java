@@ -0,0 +1,27 @@
+/**
+ * How much history a group keeps. Once either limit is reached the oldest messages are dropped.
+ */
+
+package csci4311.chat;
+
+public class HistoryLimits {
+
+    private int maxMessages;
+    private long maxBytes;
+
+    public HistoryLimits(int maxMessages, long maxBytes) {
+        if (maxMessages < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("History limits must be positive");
+        }
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
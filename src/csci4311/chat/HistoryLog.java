@@ -0,0 +1,173 @@
+/**
+ * The on-disk history of every group, one directory of LogHistoryStore segments per group.
+ *
+ * Appends only write to memory mapped segments and return, they never wait for the disk.
+ * A sync thread forces every log written to since its last pass, so one fsync per log covers
+ * all the messages appended in that interval. A crash of the process loses nothing, a crash of
+ * the machine loses at most the last interval. A log not appended to for a whole interval has
+ * its active segment released, and full segments mapped again for reading are capped at
+ * MAPPED_SEGMENTS across all groups, the oldest mapping being released first.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class HistoryLog implements Runnable {
+
+    private static final int MAPPED_SEGMENTS = 64;
+
+    private File directory;
+    private int segmentBytes;
+    private long syncMillis;
+    // Logs appended to since they were last forced
+    private ConcurrentLinkedQueue<LogHistoryStore> dirty;
+    // Logs forced by the last sync, released by the next one unless appended to since
+    private HashSet<LogHistoryStore> synced;
+    // Segments mapped for reading, oldest mapping first
+    private LinkedHashMap<LogHistoryStore.Segment, MappedByteBuffer> mapped;
+
+    /**
+     * Open the log in directory, creating it if needed. Nothing is synced until start().
+     *
+     * @param directory
+     * @param segmentBytes size of each segment file
+     * @param syncMillis time between syncs
+     * @throws IOException
+     */
+    public HistoryLog(File directory, int segmentBytes, long syncMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncMillis = syncMillis;
+        this.dirty = new ConcurrentLinkedQueue<>();
+        this.synced = new HashSet<>();
+        this.mapped = new LinkedHashMap<>();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create history directory " + directory);
+        }
+    }
+
+    /**
+     * Start the sync thread.
+     */
+    public void start() {
+        Thread.ofPlatform().name("msgp-history-sync").daemon().start(this);
+        // Force what is left when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(this::sync));
+    }
+
+    /**
+     * Names of the groups that have a log, to recreate them at startup.
+     *
+     * @return
+     */
+    public ArrayList<String> getGroups() {
+        ArrayList<String> groups = new ArrayList<>();
+        File[] files = directory.listFiles(File::isDirectory);
+        if (files != null) {
+            for (File file : files) {
+                groups.add(URLDecoder.decode(file.getName(), StandardCharsets.UTF_8));
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Open a group's log, recovering the messages already in it.
+     *
+     * @param group
+     * @param limits
+     * @return
+     * @throws IOException
+     */
+    public LogHistoryStore open(String group, HistoryLimits limits) throws IOException {
+        // Any group name becomes a safe directory name, "." and ".." included
+        String name = URLEncoder.encode(group, StandardCharsets.UTF_8).replace(".", "%2E");
+        return new LogHistoryStore(this, new File(directory, name), limits);
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * Have the next sync force a log.
+     *
+     * @param store
+     */
+    void markDirty(LogHistoryStore store) {
+        dirty.add(store);
+    }
+
+    /**
+     * Count a segment mapped for reading, releasing the oldest such mapping past MAPPED_SEGMENTS.
+     *
+     * @param segment
+     * @param buffer
+     */
+    void mapped(LogHistoryStore.Segment segment, MappedByteBuffer buffer) {
+        Map.Entry<LogHistoryStore.Segment, MappedByteBuffer> oldest = null;
+        synchronized (mapped) {
+            mapped.put(segment, buffer);
+            if (mapped.size() > MAPPED_SEGMENTS) {
+                Iterator<Map.Entry<LogHistoryStore.Segment, MappedByteBuffer>> entries = mapped.entrySet().iterator();
+                oldest = entries.next();
+                entries.remove();
+            }
+        }
+        // Released outside the lock, the segment's own lock is taken by its readers
+        if (oldest != null) {
+            oldest.getKey().release(oldest.getValue());
+        }
+    }
+
+    /**
+     * Stop counting a segment that was deleted or mapped for appending.
+     *
+     * @param segment
+     */
+    void unmapped(LogHistoryStore.Segment segment) {
+        synchronized (mapped) {
+            mapped.remove(segment);
+        }
+    }
+
+    /**
+     * Force every log appended to since the last sync, and release the active segment of the
+     * logs forced by the last sync that were not appended to since.
+     */
+    public synchronized void sync() {
+        HashSet<LogHistoryStore> idle = synced;
+        synced = new HashSet<>();
+        LogHistoryStore store;
+        while ((store = dirty.poll()) != null) {
+            try {
+                store.sync();
+            } catch (IOException | UncheckedIOException e) {
+                e.printStackTrace();
+            }
+            synced.add(store);
+        }
+        for (LogHistoryStore quiet : idle) {
+            if (!synced.contains(quiet)) {
+                quiet.release();
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(syncMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sync();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Where a group keeps its history. Every message gets the next sequence number of the group
+ * and messages are dropped oldest first once the group's HistoryLimits are exceeded.
+ *
+ * HistoryBuffer keeps history in memory, LogHistoryStore on disk so it survives a restart.
+ */
+
+package csci4311.chat;
+
+import java.util.*;
+
+public interface HistoryStore {
+
+    /**
+     * Add a message to the history.
+     *
+     * @param message
+     * @return the message's sequence number
+     */
+    long append(String message);
+
+    /**
+     * Messages with a sequence number of at least since, oldest first.
+     *
+     * @param since
+     * @param limit maximum number of messages returned
+     * @return
+     */
+    ArrayList<HistoryEntry> read(long since, int limit);
+
+    /**
+     * Sequence number of the oldest message kept.
+     *
+     * @return
+     */
+    long getFirstSequence();
+
+    /**
+     * Sequence number the next message will get.
+     *
+     * @return
+     */
+    long getNextSequence();
+
+    boolean isEmpty();
+
+    int size();
+}
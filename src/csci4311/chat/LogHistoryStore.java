@@ -0,0 +1,524 @@
+/**
+ * A group's history in an append-only log of segment files, kept by a HistoryLog.
+ *
+ * Each segment is named after the sequence number of its first message and is memory mapped,
+ * so appending copies the record into the mapping and reading copies it back out without a
+ * system call. No file descriptor is kept open, a mapping does not need one. Records are
+ *
+ *   int length | long sequence | int crc32 | UTF-8 message
+ *
+ * and a segment ends at the first record that is zero, torn or out of sequence, which is where
+ * recovery resumes appending after a crash.
+ *
+ * Every INDEX_INTERVAL-th record of a segment is indexed by position, so a read seeks to the
+ * closest indexed record before the first message wanted and scans from there. Limits are
+ * applied by deleting whole segments, the oldest segment is only deleted once the ones after
+ * it hold at least the group's limit.
+ *
+ * Only the active segment stays mapped. Its mapping starts at INITIAL_MAPPING_BYTES and doubles
+ * as it fills, up to the segment size, and the HistoryLog releases it once the group has gone a
+ * sync interval without a message. Full segments are released once forced and mapped read-only
+ * again when read, and the HistoryLog keeps at most MAPPED_SEGMENTS of those mapped across all
+ * groups. So a server maps at most one segment per busy group plus MAPPED_SEGMENTS segments.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+public class LogHistoryStore implements HistoryStore {
+
+    private static final int RECORD_HEADER = 16;
+    private static final int INDEX_INTERVAL = 64;
+    private static final int INITIAL_MAPPING_BYTES = 64 * 1024;
+
+    private HistoryLog log;
+    private File directory;
+    private HistoryLimits limits;
+    private ArrayList<Segment> segments;
+    private long nextSequence;
+    // Bytes of the messages in all segments, as HistoryEntry.encodedLength counts them
+    private long bytes;
+    private CRC32 crc;
+    private ReentrantReadWriteLock lock;
+    private volatile boolean dirty;
+    // Full segments not forced yet, left to the sync thread
+    private ConcurrentLinkedQueue<Segment> full;
+
+    /**
+     * Open the log in directory and recover its segments.
+     *
+     * @param log
+     * @param directory
+     * @param limits
+     * @throws IOException
+     */
+    LogHistoryStore(HistoryLog log, File directory, HistoryLimits limits) throws IOException {
+        this.log = log;
+        this.directory = directory;
+        this.limits = limits;
+        this.segments = new ArrayList<>();
+        this.crc = new CRC32();
+        this.lock = new ReentrantReadWriteLock();
+        this.full = new ConcurrentLinkedQueue<>();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create history directory " + directory);
+        }
+        recover();
+    }
+
+    /**
+     * Append a message to the active segment, starting a new segment when it is full.
+     *
+     * @param message
+     * @return the message's sequence number, or -1 if it could not be written
+     */
+    public long append(String message) {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        int size = HistoryEntry.encodedLength(message);
+        lock.writeLock().lock();
+        try {
+            long sequence = nextSequence;
+            Segment active = segments.get(segments.size() - 1);
+            if (!active.append(sequence, payload, size, crc)) {
+                if (active.count == 0) {
+                    // Too small for even this message, replace it
+                    segments.remove(segments.size() - 1);
+                    active.delete();
+                } else {
+                    // Forcing it here would hold the lock for an fsync, the sync thread does it
+                    full.add(active);
+                }
+                active = createSegment(sequence, payload.length);
+                active.append(sequence, payload, size, crc);
+            }
+            nextSequence++;
+            bytes += size;
+            deleteOldSegments();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (!dirty) {
+            dirty = true;
+            log.markDirty(this);
+        }
+        return nextSequence - 1;
+    }
+
+    public ArrayList<HistoryEntry> read(long since, int limit) {
+        ArrayList<HistoryEntry> entries = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            long start = Math.max(since, firstSequence());
+            for (int i = findSegment(start); i < segments.size() && entries.size() < limit; i++) {
+                segments.get(i).read(start, limit, entries);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return entries;
+    }
+
+    /**
+     * Sequence number of the oldest message kept. Segments hold up to a segment more than
+     * the message limit, the extra messages are not returned.
+     *
+     * @return
+     */
+    public long getFirstSequence() {
+        lock.readLock().lock();
+        try {
+            return firstSequence();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getNextSequence() {
+        lock.readLock().lock();
+        try {
+            return nextSequence;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return (int) (nextSequence - firstSequence());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Force the segments filled since the last sync and the active segment to disk. Called by
+     * the HistoryLog sync thread, without holding the lock while forcing.
+     *
+     * @throws IOException
+     */
+    void sync() throws IOException {
+        Segment segment;
+        while ((segment = full.poll()) != null) {
+            segment.close();
+        }
+        Segment active;
+        // Appends from now on mark the log dirty again
+        dirty = false;
+        lock.readLock().lock();
+        try {
+            active = segments.get(segments.size() - 1);
+        } finally {
+            lock.readLock().unlock();
+        }
+        active.force();
+    }
+
+    /**
+     * Force and release the active segment's mapping, the next append or read maps it again.
+     * Called by the HistoryLog sync thread once the log has gone a sync without an append.
+     */
+    void release() {
+        lock.writeLock().lock();
+        try {
+            if (!dirty) {
+                segments.get(segments.size() - 1).close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long firstSequence() {
+        return Math.max(segments.get(0).baseSequence, nextSequence - limits.getMaxMessages());
+    }
+
+    /**
+     * Open the existing segments in sequence order and continue after the last complete record.
+     *
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        if (files == null || files.length == 0) {
+            createSegment(0, 0);
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            long baseSequence = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+            // Segments after a gap would break the sequence, start over from the gap
+            if (!segments.isEmpty() && baseSequence != nextSequence) {
+                Files.delete(file.toPath());
+                continue;
+            }
+            Segment segment = new Segment(log, file, baseSequence, (int) file.length());
+            segment.recover(crc);
+            segments.add(segment);
+            nextSequence = baseSequence + segment.count;
+            bytes += segment.bytes;
+        }
+        // Only the last segment is appended to, it can still grow to a full segment
+        for (int i = 0; i < segments.size() - 1; i++) {
+            segments.get(i).close();
+        }
+        Segment active = segments.get(segments.size() - 1);
+        active.capacity = Math.max(active.capacity, log.getSegmentBytes());
+    }
+
+    /**
+     * Create a new active segment starting at sequence, its file is mapped by the first append.
+     *
+     * @param sequence
+     * @param payloadLength length of the first message, the segment is made big enough for it
+     * @return
+     * @throws IOException
+     */
+    private Segment createSegment(long sequence, int payloadLength) throws IOException {
+        File file = new File(directory, String.format("%020d.log", sequence));
+        Segment segment = new Segment(log, file, sequence, Math.max(log.getSegmentBytes(), RECORD_HEADER + payloadLength));
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Delete the oldest segments while the ones after them still hold the group's limits.
+     *
+     * @throws IOException
+     */
+    private void deleteOldSegments() throws IOException {
+        while (segments.size() > 1
+                && (nextSequence - segments.get(1).baseSequence >= limits.getMaxMessages()
+                    || bytes - segments.get(0).bytes >= limits.getMaxBytes())) {
+            Segment oldest = segments.remove(0);
+            bytes -= oldest.bytes;
+            oldest.delete();
+        }
+    }
+
+    /**
+     * Index of the segment holding sequence.
+     *
+     * @param sequence
+     * @return
+     */
+    private int findSegment(long sequence) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segments.get(middle).baseSequence <= sequence) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * One segment file and its sparse index.
+     */
+    static class Segment {
+        private HistoryLog log;
+        private File file;
+        private long baseSequence;
+        // Size the file may grow to, a record past it starts the next segment
+        private int capacity;
+        // Null while released, appends need a read-write mapping and reads take either
+        private volatile MappedByteBuffer buffer;
+        private boolean writable;
+        // Where the next record is written
+        private int position;
+        private int count;
+        // Bytes of the messages against the byte limit, not of the records
+        private long bytes;
+        // Position of every INDEX_INTERVAL-th record, by count
+        private int[] index;
+
+        private Segment(HistoryLog log, File file, long baseSequence, int capacity) {
+            this.log = log;
+            this.file = file;
+            this.baseSequence = baseSequence;
+            this.capacity = capacity;
+            this.index = new int[16];
+        }
+
+        /**
+         * Write a record if it fits.
+         *
+         * @param sequence
+         * @param payload
+         * @param size the message's HistoryEntry.encodedLength
+         * @param crc
+         * @return false if the segment is full
+         * @throws IOException
+         */
+        private boolean append(long sequence, byte[] payload, int size, CRC32 crc) throws IOException {
+            int end = position + RECORD_HEADER + payload.length;
+            if (end > capacity) {
+                return false;
+            }
+            MappedByteBuffer mapped = writable(end);
+            crc.reset();
+            crc.update(payload);
+            // The length goes in last, so a torn record reads as the end of the segment
+            mapped.putLong(position + 4, sequence);
+            mapped.putInt(position + 12, (int) crc.getValue());
+            mapped.put(position + RECORD_HEADER, payload);
+            mapped.putInt(position, payload.length);
+            added(position, payload.length, size);
+            return true;
+        }
+
+        /**
+         * Add the messages from since on to entries, up to limit in total.
+         *
+         * @param since
+         * @param limit
+         * @param entries
+         * @throws IOException
+         */
+        private void read(long since, int limit, ArrayList<HistoryEntry> entries) throws IOException {
+            long skip = Math.max(since - baseSequence, 0);
+            if (skip >= count) {
+                return;
+            }
+            MappedByteBuffer mapped = readable();
+            // Start at the closest indexed record
+            int indexed = (int) (skip / INDEX_INTERVAL);
+            int offset = index[indexed];
+            long sequence = baseSequence + (long) indexed * INDEX_INTERVAL;
+
+            while (offset < position && entries.size() < limit) {
+                int length = mapped.getInt(offset);
+                if (sequence >= since) {
+                    byte[] payload = new byte[length];
+                    mapped.get(offset + RECORD_HEADER, payload);
+                    entries.add(new HistoryEntry(sequence, new String(payload, StandardCharsets.UTF_8)));
+                }
+                offset += RECORD_HEADER + length;
+                sequence++;
+            }
+        }
+
+        /**
+         * Scan the records written before the restart and index them.
+         *
+         * @param crc
+         * @throws IOException
+         */
+        private void recover(CRC32 crc) throws IOException {
+            MappedByteBuffer mapped = map(FileChannel.MapMode.READ_WRITE, capacity);
+            buffer = mapped;
+            writable = true;
+            while (position + RECORD_HEADER <= mapped.capacity()) {
+                int length = mapped.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER + length > mapped.capacity()
+                        || mapped.getLong(position + 4) != baseSequence + count) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                mapped.get(position + RECORD_HEADER, payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != mapped.getInt(position + 12)) {
+                    break;
+                }
+                added(position, length, HistoryEntry.encodedLength(new String(payload, StandardCharsets.UTF_8)));
+            }
+        }
+
+        private void added(int offset, int length, int size) {
+            if (count % INDEX_INTERVAL == 0) {
+                if (count / INDEX_INTERVAL == index.length) {
+                    index = Arrays.copyOf(index, index.length * 2);
+                }
+                index[count / INDEX_INTERVAL] = offset;
+            }
+            position = offset + RECORD_HEADER + length;
+            count++;
+            bytes += size;
+        }
+
+        /**
+         * The read-write mapping appends go through, mapped again if it was released, is read-only
+         * or ends before end. It starts at INITIAL_MAPPING_BYTES and at least doubles each time,
+         * up to capacity. Called with the store's write lock held.
+         *
+         * @param end
+         * @return
+         * @throws IOException
+         */
+        private MappedByteBuffer writable(int end) throws IOException {
+            MappedByteBuffer mapped = buffer;
+            if (mapped != null && writable && mapped.capacity() >= end) {
+                return mapped;
+            }
+            int size = (mapped != null && writable) ? mapped.capacity() * 2 : INITIAL_MAPPING_BYTES;
+            mapped = map(FileChannel.MapMode.READ_WRITE, Math.min(capacity, Math.max(size, end)));
+            // A read-only mapping it replaces no longer counts against the log's limit
+            log.unmapped(this);
+            synchronized (this) {
+                buffer = mapped;
+                writable = true;
+            }
+            return mapped;
+        }
+
+        /**
+         * The current mapping, or a read-only mapping of the records if the segment was released,
+         * counted against the log's limit on mapped segments. Called with the store's read lock held.
+         *
+         * @return
+         * @throws IOException
+         */
+        private MappedByteBuffer readable() throws IOException {
+            MappedByteBuffer mapped = buffer;
+            if (mapped != null) {
+                return mapped;
+            }
+            synchronized (this) {
+                if (buffer != null) {
+                    return buffer;
+                }
+                mapped = map(FileChannel.MapMode.READ_ONLY, position);
+                buffer = mapped;
+                writable = false;
+            }
+            log.mapped(this, mapped);
+            return mapped;
+        }
+
+        /**
+         * Map the start of the file, growing it to size if it is shorter. The channel is closed
+         * straight away, the mapping stays valid without it.
+         *
+         * @param mode
+         * @param size
+         * @return
+         * @throws IOException
+         */
+        private MappedByteBuffer map(FileChannel.MapMode mode, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(mode, 0, size);
+            }
+        }
+
+        /**
+         * Drop the mapping if it is still the given one. It is unmapped once the readers still
+         * holding it are done and it is collected.
+         *
+         * @param mapped
+         */
+        synchronized void release(MappedByteBuffer mapped) {
+            if (buffer == mapped) {
+                buffer = null;
+            }
+        }
+
+        private void force() {
+            MappedByteBuffer mapped = buffer;
+            if (mapped != null) {
+                mapped.force();
+            }
+        }
+
+        /**
+         * Force the segment and release its mapping.
+         */
+        private void close() {
+            MappedByteBuffer mapped = buffer;
+            if (mapped != null) {
+                mapped.force();
+                release(mapped);
+            }
+        }
+
+        private void delete() throws IOException {
+            log.unmapped(this);
+            buffer = null;
+            // The file is never mapped if no record was written
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/**
+ * Write-ahead log of the server's users, groups and memberships, so a restarted server has them
+ * back before any client reconnects.
+ *
+ * Every change made by join(), leave(), addUserToServer() and disconnect() is written to the
+ * current log file before the request is answered. A sync thread forces the file to disk every
+ * syncMillis, one fsync covering every change made in between.
+ *
+ * After snapshotInterval changes the log moves on to a new file and a snapshot of the whole
+ * state is written, after which the older files are deleted. On startup the snapshot is
+ * loaded and the files written since are replayed. Each record sets whether a user is in a
+ * group, a user exists or a group exists, so replaying records the snapshot already saw
+ * gives the same state. Restored users are offline until they reconnect, and those that do not
+ * reconnect within the configured grace period are removed from their groups.
+ *
+ * Records are int length | int crc32 | byte operation | UTF user | UTF group, the log ends at the
+ * first torn record.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+public class MembershipLog implements Runnable {
+
+    // Operations
+    public static final int JOIN = 1;
+    public static final int LEAVE = 2;
+    public static final int ADD_USER = 3;
+    public static final int DISCONNECT = 4;
+    public static final int GROUP = 5;
+
+    private static final String SNAPSHOT = "membership.snapshot";
+    // Operation and two writeUTF() strings
+    private static final int MAX_RECORD_LENGTH = 1 + 2 * (2 + 65535);
+
+    private ChatServer chatServer;
+    private File directory;
+    private int snapshotInterval;
+    private long syncMillis;
+    private FileChannel channel;
+    private long generation;
+    private int records;
+    private volatile boolean snapshotting;
+    private volatile boolean dirty;
+    private ReentrantLock lock;
+
+    /**
+     * @param chatServer server whose state is logged, and rebuilt by replay()
+     * @param directory
+     * @param snapshotInterval changes logged between snapshots
+     * @param syncMillis time between syncs
+     * @throws IOException
+     */
+    public MembershipLog(ChatServer chatServer, File directory, int snapshotInterval, long syncMillis) throws IOException {
+        this.chatServer = chatServer;
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+        this.syncMillis = syncMillis;
+        this.lock = new ReentrantLock();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create state directory " + directory);
+        }
+    }
+
+    /**
+     * Load the snapshot and replay the log files written after it into the ChatServer,
+     * then start a new log file and the sync thread.
+     *
+     * @return number of records applied
+     * @throws IOException
+     */
+    public int replay() throws IOException {
+        int applied = 0;
+        long first = 0;
+        File snapshot = new File(directory, SNAPSHOT);
+        if (snapshot.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+                first = in.readLong();
+                applied += replay(in);
+            }
+        }
+        generation = first;
+        for (long logGeneration : getGenerations()) {
+            if (logGeneration >= first) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file(logGeneration))))) {
+                    applied += replay(in);
+                }
+            }
+            generation = Math.max(generation, logGeneration + 1);
+        }
+        // Never append after a torn record
+        channel = open(generation);
+        Thread.ofPlatform().name("msgp-membership-sync").daemon().start(this);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::sync));
+        return applied;
+    }
+
+    /**
+     * Log a change. The caller makes the change and logs it while holding the user's lock,
+     * so changes to a user are logged in the order they were made.
+     *
+     * @param operation
+     * @param user
+     * @param group
+     */
+    public void record(int operation, String user, String group) {
+        boolean snapshot = false;
+        lock.lock();
+        try {
+            ByteBuffer record = encode(operation, user, group);
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            dirty = true;
+            if (++records >= snapshotInterval && !snapshotting) {
+                snapshotting = true;
+                snapshot = true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        if (snapshot) {
+            Thread.ofVirtual().start(this::snapshot);
+        }
+    }
+
+    /**
+     * Move on to a new log file and write a snapshot the new file can be replayed on.
+     */
+    public void snapshot() {
+        long snapshotGeneration;
+        lock.lock();
+        try {
+            channel.force(false);
+            channel.close();
+            channel = open(++generation);
+            snapshotGeneration = generation;
+            records = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            snapshotting = false;
+            return;
+        } finally {
+            lock.unlock();
+        }
+
+        File temporary = new File(directory, SNAPSHOT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeLong(snapshotGeneration);
+            chatServer.writeMembership(this, out);
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            snapshotting = false;
+            return;
+        }
+        try {
+            Files.move(temporary.toPath(), new File(directory, SNAPSHOT).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // The snapshot holds everything in the older files
+            for (long logGeneration : getGenerations()) {
+                if (logGeneration < snapshotGeneration) {
+                    Files.delete(file(logGeneration).toPath());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            snapshotting = false;
+        }
+    }
+
+    /**
+     * Write one record of a snapshot.
+     *
+     * @param out
+     * @param operation
+     * @param user
+     * @param group
+     * @throws IOException
+     */
+    void write(DataOutputStream out, int operation, String user, String group) throws IOException {
+        ByteBuffer record = encode(operation, user, group);
+        out.write(record.array(), 0, record.limit());
+    }
+
+    /**
+     * Force the current log file to disk if it was written to since the last sync.
+     */
+    public void sync() {
+        FileChannel current;
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        lock.lock();
+        try {
+            current = channel;
+        } finally {
+            lock.unlock();
+        }
+        // Forced without the lock, so changes keep being logged meanwhile
+        try {
+            current.force(false);
+        } catch (ClosedChannelException e) {
+            // A snapshot moved on to a new file, it forced this one first
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(syncMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sync();
+        }
+    }
+
+    /**
+     * Apply records until the end of the stream or a torn record.
+     *
+     * @param in
+     * @return number of records applied
+     * @throws IOException
+     */
+    private int replay(DataInputStream in) throws IOException {
+        int applied = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            byte[] body;
+            int checksum;
+            try {
+                int length = in.readInt();
+                checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    break;
+                }
+                body = new byte[length];
+                in.readFully(body);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+            chatServer.applyMembership(record.readByte(), record.readUTF(), record.readUTF());
+            applied++;
+        }
+        return applied;
+    }
+
+    private static ByteBuffer encode(int operation, String user, String group) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // Room for the length and crc
+        out.writeLong(0);
+        out.writeByte(operation);
+        out.writeUTF(user);
+        out.writeUTF(group);
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.limit() - 8);
+        record.putInt(0, record.limit() - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Generations of the log files in the directory, oldest first.
+     *
+     * @return
+     */
+    private ArrayList<Long> getGenerations() {
+        ArrayList<Long> generations = new ArrayList<>();
+        String[] names = directory.list((dir, name) -> name.startsWith("membership-") && name.endsWith(".wal"));
+        if (names != null) {
+            for (String name : names) {
+                generations.add(Long.parseLong(name.substring("membership-".length(), name.length() - 4)));
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private File file(long logGeneration) {
+        return new File(directory, String.format("membership-%020d.wal", logGeneration));
+    }
+
+    private FileChannel open(long logGeneration) throws IOException {
+        return FileChannel.open(file(logGeneration).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Constants of the msgp protocol shared by the server and the client.
+ *
+ * Frame types and opcodes are only carried on the wire by the binary protocol. Text frames are
+ * a writeUTF() string, their opcode is taken from the command word and their type from context.
+ */
+
+package csci4311.chat;
+
+public class Msgp {
+
+    // Frame types
+    public static final int UNKNOWN = 0;
+    public static final int REQUEST = 1;
+    public static final int REPLY = 2;
+    public static final int PUSH = 3;
+
+    // Opcodes, one per command
+    public static final int HELLO = 1;
+    public static final int JOIN = 2;
+    public static final int LEAVE = 3;
+    public static final int GROUPS = 4;
+    public static final int USERS = 5;
+    public static final int HISTORY = 6;
+    public static final int ADD_USER = 7;
+    public static final int SEND = 8;
+    public static final int BATCH = 9;
+    public static final int COUNTS = 10;
+    public static final int STATS = 11;
+
+    // Largest binary frame accepted, text frames are limited to 65535 bytes by writeUTF()
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    // Messages in a page of "msgp history <group> since <seq> limit <n>" when no limit is given
+    public static final int HISTORY_PAGE_LIMIT = 100;
+
+    // Bytes of messages in a history page, so a page fits in a text frame
+    public static final int HISTORY_PAGE_BYTES = 48 * 1024;
+
+    // Capability a client asks for in "msgp hello" to switch the connection to binary frames
+    public static final String BINARY_CAPABILITY = "binary";
+
+    // Capability asked for along with binary to compress large payloads
+    public static final String DEFLATE_CAPABILITY = "deflate";
+
+    // Smallest payload in bytes a DeflateCodec compresses, smaller ones gain too little
+    public static final int COMPRESSION_THRESHOLD = 512;
+
+    private Msgp() {
+    }
+
+    /**
+     * Opcode of a text request, taken from the word after "msgp" without copying it.
+     * Anything that is not a known command is a send, as the text protocol has always treated it.
+     *
+     * @param request
+     * @return
+     */
+    public static int opcode(String request) {
+        int start = request.indexOf(' ') + 1;
+        int end = start;
+        while (end < request.length() && request.charAt(end) != ' ' && request.charAt(end) != '\n') {
+            end++;
+        }
+
+        if (isCommand(request, start, end, "hello")) {
+            return HELLO;
+        } else if (isCommand(request, start, end, "join")) {
+            return JOIN;
+        } else if (isCommand(request, start, end, "leave")) {
+            return LEAVE;
+        } else if (isCommand(request, start, end, "groups")) {
+            return GROUPS;
+        } else if (isCommand(request, start, end, "users")) {
+            return USERS;
+        } else if (isCommand(request, start, end, "history")) {
+            return HISTORY;
+        } else if (isCommand(request, start, end, "addUser")) {
+            return ADD_USER;
+        } else if (isCommand(request, start, end, "batch")) {
+            return BATCH;
+        } else if (isCommand(request, start, end, "counts")) {
+            return COUNTS;
+        } else if (isCommand(request, start, end, "stats")) {
+            return STATS;
+        } else {
+            return SEND;
+        }
+    }
+
+    private static boolean isCommand(String request, int start, int end, String command) {
+        return end - start == command.length() && request.startsWith(command, start);
+    }
+}
@@ -1,6 +1,9 @@
 package csci4311.chat;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 
 public interface MsgpClient {
 
@@ -9,6 +12,14 @@ public interface MsgpClient {
      */
     void run();
 
+    /**
+     * Messages pushed by the server, delivered as subscribers request them. A subscriber that
+     * falls too far behind misses messages and gets onError when it reaches them.
+     *
+     * @return
+     */
+    Flow.Publisher<Message> messages();
+
     /**
      * Request to add a user to a chat group.
      *
@@ -34,6 +45,21 @@ public interface MsgpClient {
      */
     List<String> groups();
 
+    /**
+     * Request every group with its number of members.
+     *
+     * @return
+     */
+    Map<String, Integer> counts();
+
+    /**
+     * Send several single line requests in one frame.
+     *
+     * @param requests
+     * @return the replies in request order
+     */
+    List<String> batch(List<String> requests);
+
     /**
      * Request list of users in a group.
      *
@@ -50,6 +76,18 @@ public interface MsgpClient {
      */
     List<Message> history(String group);
 
+    /**
+     * Request one page of group history and add its messages to page. Messages the server
+     * could not fit in the connection's frames are reported as errors instead.
+     *
+     * @param group
+     * @param since sequence number of the first message wanted
+     * @param limit maximum number of messages in the page
+     * @param page
+     * @return sequence number to request the next page with, or -1 if there are no more messages
+     */
+    long history(String group, long since, int limit, List<Message> page);
+
     /**
      * Request to send message.
      *
@@ -60,24 +98,27 @@ public interface MsgpClient {
     String send(String[] parsedInput, String userName);
 
     /**
-     * Send request to the server.
+     * Send request to the server and wait for the reply.
      *
      * @param request
-     * @return
+     * @return the reply, or null if none came
      */
     String processRequest(String request);
 
     /**
-     * Adds user to server.
+     * Send request to the server without waiting, other requests may be sent before it is answered.
      *
-     * @return
+     * @param request
+     * @return completed with the reply
      */
-    String addUser();
+    CompletableFuture<String> sendRequest(String request);
 
     /**
-     * Wait for response from server. response will be set in run().
+     * Adds user to server.
+     *
+     * @return
      */
-    void setResponse();
+    String addUser();
 
     /**
      * Formats message to send into:
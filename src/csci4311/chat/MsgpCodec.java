@@ -0,0 +1,87 @@
+/**
+ * Reads and writes msgp frames in one wire format.
+ *
+ * A connection starts with TEXT and may switch to BINARY or DEFLATE once, through "msgp hello",
+ * before it registers a user. Both directions of a connection always use the same codec.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.nio.*;
+
+public abstract class MsgpCodec {
+
+    public static final MsgpCodec TEXT = new TextCodec(0);
+    public static final MsgpCodec BINARY = new BinaryCodec(1);
+    public static final MsgpCodec DEFLATE = new DeflateCodec(2, Msgp.COMPRESSION_THRESHOLD);
+
+    // Number of codecs, frames encoded for each codec can be cached in an array this long
+    public static final int COUNT = 3;
+
+    private int id;
+
+    protected MsgpCodec(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Encode a frame into a new buffer.
+     *
+     * @param type
+     * @param opcode
+     * @param requestId
+     * @param payload
+     * @return
+     * @throws IOException if the payload does not fit in a frame
+     */
+    public abstract ByteBuffer encode(int type, int opcode, int requestId, String payload) throws IOException;
+
+    /**
+     * Block until a whole frame has been read from the stream.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public abstract MsgpFrame read(DataInputStream in) throws IOException;
+
+    /**
+     * Total length of the frame starting at the buffer's position, or -1 if not enough bytes
+     * have arrived to know it.
+     *
+     * @param buffer
+     * @return
+     * @throws IOException if the frame is longer than allowed
+     */
+    public abstract int frameLength(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Decode the frame of the given length at the buffer's position and move past it.
+     *
+     * @param buffer
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    protected abstract MsgpFrame decode(ByteBuffer buffer, int length) throws IOException;
+
+    /**
+     * Decode the next frame from a buffer that is filled without blocking.
+     *
+     * @param buffer
+     * @return the frame, or null if it has not fully arrived yet
+     * @throws IOException
+     */
+    public MsgpFrame decode(ByteBuffer buffer) throws IOException {
+        int length = frameLength(buffer);
+        if (length < 0 || buffer.remaining() < length) {
+            return null;
+        }
+        return decode(buffer, length);
+    }
+}
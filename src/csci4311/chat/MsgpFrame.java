@@ -0,0 +1,52 @@
+/**
+ * One decoded msgp frame. The payload is the msgp text of the request, reply or message
+ * in both the text and the binary protocol.
+ */
+
+package csci4311.chat;
+
+public class MsgpFrame {
+
+    private int type;
+    private int opcode;
+    private int requestId;
+    private String payload;
+
+    public MsgpFrame(int type, int opcode, int requestId, String payload) {
+        this.type = type;
+        this.opcode = opcode;
+        this.requestId = requestId;
+        this.payload = payload;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Opcode carried by the frame, or for text frames the opcode of its command word.
+     *
+     * @return
+     */
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Whether this is a message sent by another user rather than a reply.
+     * Text frames have no type, pushed messages are recognized by their command.
+     *
+     * @return
+     */
+    public boolean isPush() {
+        return type == Msgp.PUSH || (type == Msgp.UNKNOWN && payload.startsWith("msgp send"));
+    }
+}
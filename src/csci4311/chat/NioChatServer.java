@@ -0,0 +1,56 @@
+/**
+ * Event loop version of the ChatServer's accept loop.
+ * Connections are accepted on a ServerSocketChannel and handed round robin to a fixed
+ * pool of EventLoops, so thousands of idle connections are served by a few threads
+ * instead of one ChatServerThread each.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+public class NioChatServer implements Runnable {
+
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+    private int nextEventLoop;
+
+    /**
+     * Bind to port and start the event loops.
+     *
+     * @param chatServer
+     * @param port
+     * @param eventLoopCount
+     * @throws IOException
+     */
+    public NioChatServer(ChatServer chatServer, int port, int eventLoopCount) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ChatServer.ACCEPT_BACKLOG);
+
+        eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(chatServer, i);
+            eventLoops[i].start();
+        }
+    }
+
+    /**
+     * Wait for clients to connect and register each one with the next event loop.
+     */
+    public void run() {
+        SocketChannel channel;
+        while (true) {
+            try {
+                channel = serverChannel.accept();
+                // Replies are written as soon as they are ready, pipelined clients wait on each one
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                eventLoops[nextEventLoop].register(channel);
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            } catch (IOException ie) {
+                System.out.println("Acceptance Error: " + ie);
+            }
+        }
+    }
+}
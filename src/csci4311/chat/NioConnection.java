@@ -0,0 +1,277 @@
+/**
+ * State of one client connection served by an EventLoop.
+ *
+ * Requests are framed by the connection's MsgpCodec, text or binary. Reads are non-blocking,
+ * so a request may arrive in several pieces and is only processed once the whole frame is
+ * buffered.
+ *
+ * Requests can wait on a Shard, so the EventLoop never processes them itself: it hands the
+ * decoded frames to a virtual thread that processes the connection's requests one at a time,
+ * in order. The EventLoop stops reading the connection while MAX_PENDING requests are waiting,
+ * and after handing over a "msgp hello" until it has been answered, as the frames after it may
+ * be in the wire format it switches to. Removing the connection's users once it closes waits on
+ * membership locks and shards too, so it is also left to that virtual thread.
+ *
+ * Replies and messages for the connection go through
+ * its OutboundQueue, which the owning EventLoop drains, so any thread can send to a NioConnection.
+ * The EventLoop hands the socket up to MAX_GATHER queued frames in a single gathering write.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class NioConnection {
+
+    // Idle connections only hold a small read buffer, larger frames grow it temporarily
+    private static final int INITIAL_READ_BUFFER = 512;
+    // Frames written by one system call
+    private static final int MAX_GATHER = 64;
+    // Requests waiting to be processed before the connection is no longer read
+    private static final int MAX_PENDING = 64;
+    private static final ThreadFactory REQUEST_THREADS = Thread.ofVirtual().name("msgp-request-", 0).factory();
+
+    private ChatServer chatServer;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private EventLoop eventLoop;
+    private RequestHandler requestHandler;
+    private OutboundQueue outboundQueue;
+    // Frames taken off the queue that the socket has not fully accepted yet
+    private ByteBuffer[] writing;
+    private int writingCount;
+    private ByteBuffer readBuffer;
+    private AtomicBoolean writeScheduled;
+    private AtomicBoolean closed;
+    private ServerStats stats;
+    // Requests decoded but not processed yet
+    private ConcurrentLinkedQueue<MsgpFrame> requests;
+    private AtomicInteger pending;
+    // Whether the EventLoop waits for the pending requests before decoding more
+    private volatile boolean paused;
+
+    public NioConnection(ChatServer chatServer, EventLoop eventLoop, SocketChannel channel, SelectionKey key) {
+        this.channel = channel;
+        this.key = key;
+        this.eventLoop = eventLoop;
+        this.readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        this.writing = new ByteBuffer[MAX_GATHER];
+        this.writeScheduled = new AtomicBoolean();
+        this.closed = new AtomicBoolean();
+        this.chatServer = chatServer;
+        this.requests = new ConcurrentLinkedQueue<>();
+        this.pending = new AtomicInteger();
+    }
+
+    /**
+     * Create the connection's OutboundQueue, whose callbacks refer to this connection, and count
+     * it as connected. Called by the EventLoop once the connection is constructed, before it is
+     * attached to its key.
+     */
+    public void start() {
+        this.outboundQueue = chatServer.createOutboundQueue(this::scheduleWrite, this::requestClose);
+        this.requestHandler = new RequestHandler(chatServer, outboundQueue);
+        this.stats = chatServer.getStats();
+        stats.connected();
+    }
+
+    /**
+     * Read available bytes and hand over every complete request. Called by the EventLoop.
+     *
+     * @throws IOException
+     */
+    public void read() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        stats.countRead(read);
+        dispatchRequests();
+    }
+
+    /**
+     * Continue with the buffered requests once the pending ones have been processed.
+     * Called by the EventLoop.
+     *
+     * @throws IOException
+     */
+    public void resume() throws IOException {
+        if (!paused || closed.get() || !key.isValid()) {
+            return;
+        }
+        paused = false;
+        dispatchRequests();
+    }
+
+    /**
+     * Decode the complete frames in the read buffer and queue them for the request thread,
+     * until there are none left or reading is paused.
+     *
+     * @throws IOException
+     */
+    private void dispatchRequests() throws IOException {
+        readBuffer.flip();
+        // The codec is looked up for every frame, "msgp hello" may switch it mid buffer
+        MsgpFrame request;
+        while (!paused && (request = outboundQueue.getCodec().decode(readBuffer)) != null) {
+            requests.add(request);
+            // Set before the request is counted, so the thread that finishes it sees the pause
+            if (request.getOpcode() == Msgp.HELLO || pending.get() + 1 >= MAX_PENDING) {
+                paused = true;
+            }
+            if (pending.getAndIncrement() == 0) {
+                REQUEST_THREADS.newThread(this::processRequests).start();
+            }
+        }
+        readBuffer.compact();
+        resizeReadBuffer();
+        if (key.isValid()) {
+            key.interestOps(paused ? key.interestOps() & ~SelectionKey.OP_READ
+                    : key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Process the connection's requests in order until none are pending, then have the
+     * EventLoop resume reading if it paused. Once the connection is closed the remaining
+     * requests are skipped and its users removed. Runs on a virtual thread, at most one per
+     * connection at a time.
+     */
+    private void processRequests() {
+        do {
+            // null for the turn close() takes
+            MsgpFrame request = requests.poll();
+            if (request != null && !closed.get()) {
+                try {
+                    requestHandler.handle(request);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("The follow error occurred: " + e);
+                    requestClose();
+                }
+            }
+            // Also undoes a join or addUser that raced with close()
+            if (closed.get()) {
+                requestHandler.disconnect();
+            }
+        } while (pending.decrementAndGet() > 0);
+        if (paused && !closed.get()) {
+            eventLoop.requestResume(this);
+        }
+    }
+
+    /**
+     * Write as much of the queue as the socket accepts. Called by the EventLoop.
+     *
+     * @throws IOException
+     */
+    public void write() throws IOException {
+        // Frames queued from now on schedule another write
+        writeScheduled.set(false);
+        if (!key.isValid()) {
+            return;
+        }
+        while (true) {
+            ByteBuffer frame;
+            while (writingCount < MAX_GATHER && (frame = outboundQueue.poll()) != null) {
+                writing[writingCount++] = frame;
+            }
+            if (writingCount == 0) {
+                break;
+            }
+            long bytes;
+            try {
+                bytes = channel.write(writing, 0, writingCount);
+            } catch (IOException e) {
+                OutboundQueue.countWriteFailure();
+                throw e;
+            }
+            int written = 0;
+            while (written < writingCount && !writing[written].hasRemaining()) {
+                written++;
+            }
+            OutboundQueue.countWrite(written, bytes);
+            // Move the frames not fully written to the front
+            System.arraycopy(writing, written, writing, 0, writingCount - written);
+            Arrays.fill(writing, writingCount - written, writingCount, null);
+            writingCount -= written;
+            if (writingCount > 0) {
+                // Socket buffer is full, continue once the channel is writable again
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Close the channel and drop anything still queued. The connection's users are removed by
+     * its request thread, so close() never waits and may be called by the EventLoop and by a
+     * shard thread applying the slow consumer policy.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        key.cancel();
+        outboundQueue.close();
+        stats.disconnected();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // Takes a turn after the pending requests, or starts the request thread if none are
+        if (pending.getAndIncrement() == 0) {
+            REQUEST_THREADS.newThread(this::processRequests).start();
+        }
+    }
+
+    /**
+     * Close the connection from any thread. The channel is closed right away,
+     * the EventLoop notices on its next select.
+     */
+    private void requestClose() {
+        close();
+        key.selector().wakeup();
+    }
+
+    /**
+     * Make sure the EventLoop will write the frame that was just queued.
+     */
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            eventLoop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Grow the read buffer when it is full and the frame does not fit, shrink it again once it
+     * is empty. The buffer at most doubles each time, so it grows with the bytes that actually
+     * arrive and a frame header alone cannot make the connection allocate a large buffer.
+     * The buffer is in write mode (after compact) when this is called.
+     *
+     * @throws IOException if the next frame is longer than allowed
+     */
+    private void resizeReadBuffer() throws IOException {
+        if (readBuffer.position() == 0) {
+            if (readBuffer.capacity() > INITIAL_READ_BUFFER) {
+                readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+            }
+            return;
+        }
+        int needed = outboundQueue.getCodec().frameLength(readBuffer.duplicate().flip());
+        if (needed > readBuffer.capacity() && !readBuffer.hasRemaining()) {
+            int capacity = (int) Math.min(2L * readBuffer.capacity(), needed);
+            readBuffer.flip();
+            readBuffer = ByteBuffer.allocate(capacity).put(readBuffer);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * A group's history kept outside the Java heap, so the garbage collector never has to trace it.
+ *
+ * Messages are written as UTF-8 into direct ByteBuffer arenas, one after the other. The heap only
+ * holds where each message is, as a ring of packed arena and offset longs, a ring of lengths and a
+ * ring of the sizes messages count against the byte limit, indexed by sequence % capacity like a
+ * HistoryBuffer. Arenas start small and double up to ARENA_BYTES, an arena is released once every
+ * message in it has been evicted.
+ *
+ * Reads decode straight from the arenas. Arenas are reused, so unlike a HistoryBuffer readers
+ * take a read lock to keep an arena from being overwritten under them.
+ */
+
+package csci4311.chat;
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+public class OffHeapHistoryStore implements HistoryStore {
+
+    private static final int FIRST_ARENA_BYTES = 4096;
+    private static final int ARENA_BYTES = 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private HistoryLimits limits;
+    // Arenas still holding messages, oldest first
+    private ArrayList<Arena> arenas;
+    // A released arena kept for reuse
+    private ByteBuffer spare;
+    private long nextArenaId;
+    // Arena id in the high half, offset in the low half
+    private long[] locations;
+    private int[] lengths;
+    // What each message counts against the byte limit, see HistoryEntry.encodedLength
+    private int[] sizes;
+    private long head;
+    private long tail;
+    private long bytes;
+    private ReentrantReadWriteLock lock;
+
+    public OffHeapHistoryStore(HistoryLimits limits) {
+        this.limits = limits;
+        this.arenas = new ArrayList<>();
+        int capacity = Math.min(INITIAL_CAPACITY, limits.getMaxMessages());
+        this.locations = new long[capacity];
+        this.lengths = new int[capacity];
+        this.sizes = new int[capacity];
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Copy a message into the newest arena, dropping the oldest messages if a limit is exceeded.
+     * The newest message is always kept, even if it alone is over the byte limit.
+     *
+     * @param message
+     * @return the message's sequence number
+     */
+    public long append(String message) {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            long sequence = tail;
+            if (sequence - head == locations.length) {
+                if (locations.length < limits.getMaxMessages()) {
+                    grow();
+                } else {
+                    evictOldest();
+                }
+            }
+            Arena arena = arenas.isEmpty() ? null : arenas.get(arenas.size() - 1);
+            if (arena == null || arena.buffer.capacity() - arena.position < payload.length) {
+                arena = createArena(payload.length);
+            }
+            arena.buffer.put(arena.position, payload);
+            int index = (int) (sequence % locations.length);
+            locations[index] = (arena.id << 32) | arena.position;
+            lengths[index] = payload.length;
+            sizes[index] = HistoryEntry.encodedLength(message);
+            arena.position += payload.length;
+            arena.count++;
+            bytes += sizes[index];
+            tail = sequence + 1;
+
+            while (bytes > limits.getMaxBytes() && head < sequence) {
+                evictOldest();
+            }
+            return sequence;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public ArrayList<HistoryEntry> read(long since, int limit) {
+        ArrayList<HistoryEntry> entries = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (long sequence = Math.max(since, head); sequence < tail && entries.size() < limit; sequence++) {
+                int index = (int) (sequence % locations.length);
+                Arena arena = getArena(locations[index] >>> 32);
+                byte[] payload = new byte[lengths[index]];
+                arena.buffer.get((int) locations[index], payload);
+                entries.add(new HistoryEntry(sequence, new String(payload, StandardCharsets.UTF_8)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return entries;
+    }
+
+    public long getFirstSequence() {
+        lock.readLock().lock();
+        try {
+            return head;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getNextSequence() {
+        lock.readLock().lock();
+        try {
+            return tail;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drop the oldest message and release the arenas left empty. Called with the write lock held.
+     */
+    private void evictOldest() {
+        int index = (int) (head % locations.length);
+        getArena(locations[index] >>> 32).count--;
+        bytes -= sizes[index];
+        head++;
+        // The newest arena is kept for the next message
+        while (arenas.size() > 1 && arenas.get(0).count == 0) {
+            ByteBuffer released = arenas.remove(0).buffer;
+            if (released.capacity() == ARENA_BYTES) {
+                spare = released;
+            }
+        }
+    }
+
+    /**
+     * Start a new arena big enough for a message of length bytes. Called with the write lock held.
+     *
+     * @param length
+     * @return
+     */
+    private Arena createArena(int length) {
+        int size = arenas.isEmpty() ? FIRST_ARENA_BYTES
+                : (int) Math.min((long) arenas.get(arenas.size() - 1).buffer.capacity() * 2, ARENA_BYTES);
+        ByteBuffer buffer;
+        if (length <= ARENA_BYTES && size == ARENA_BYTES && spare != null) {
+            buffer = spare;
+            spare = null;
+        } else {
+            buffer = ByteBuffer.allocateDirect(Math.max(size, length));
+        }
+        Arena arena = new Arena(nextArenaId++, buffer);
+        arenas.add(arena);
+        return arena;
+    }
+
+    private Arena getArena(long id) {
+        return arenas.get((int) (id - arenas.get(0).id));
+    }
+
+    /**
+     * Double the rings, up to the message limit. Called with the write lock held.
+     */
+    private void grow() {
+        int capacity = (int) Math.min((long) locations.length * 2, limits.getMaxMessages());
+        long[] grownLocations = new long[capacity];
+        int[] grownLengths = new int[capacity];
+        int[] grownSizes = new int[capacity];
+        for (long sequence = head; sequence < tail; sequence++) {
+            int index = (int) (sequence % locations.length);
+            grownLocations[(int) (sequence % capacity)] = locations[index];
+            grownLengths[(int) (sequence % capacity)] = lengths[index];
+            grownSizes[(int) (sequence % capacity)] = sizes[index];
+        }
+        locations = grownLocations;
+        lengths = grownLengths;
+        sizes = grownSizes;
+    }
+
+    /**
+     * A direct buffer messages are written into and the number of them not evicted yet.
+     */
+    private static class Arena {
+        private long id;
+        private ByteBuffer buffer;
+        private int position;
+        private int count;
+
+        private Arena(long id, ByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+    }
+}
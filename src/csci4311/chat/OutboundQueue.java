@@ -0,0 +1,292 @@
+/**
+ * Frames waiting to be written to one connection.
+ *
+ * Every connection owns one OutboundQueue and exactly one writer drains it: an OutboundWriter
+ * for the thread per connection modes, the connection's EventLoop in nio mode. Replies and
+ * messages sent by other users go through the same queue, so frames are never interleaved on
+ * the stream and ChatServer.send() never waits for a slow client.
+ *
+ * The bytes queued are capped. When a message would go over the limit the queue's
+ * SlowConsumerPolicy decides whether old messages, the new message or the connection is dropped.
+ * Replies count against the same limit but are never dropped: a client that keeps sending
+ * requests while its replies are already over the limit is not reading them and is disconnected,
+ * whatever the policy.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class OutboundQueue {
+
+    // Handed to the writer once the queue is closed
+    private static final Entry CLOSED = new Entry(ByteBuffer.allocate(0), false);
+
+    // Server wide counts of each slow consumer policy taking effect
+    private static final LongAdder droppedOldest = new LongAdder();
+    private static final LongAdder droppedNewest = new LongAdder();
+    private static final LongAdder disconnects = new LongAdder();
+    // Server wide counts of socket writes, the frames and bytes they carried, and failed writes
+    private static final LongAdder socketWrites = new LongAdder();
+    private static final LongAdder framesWritten = new LongAdder();
+    private static final LongAdder bytesWritten = new LongAdder();
+    private static final LongAdder writeFailures = new LongAdder();
+
+    private LinkedBlockingDeque<Entry> frames;
+    private AtomicLong queuedBytes;
+    private AtomicLong dropped;
+    private long limitBytes;
+    private SlowConsumerPolicy policy;
+    private Runnable onEnqueue;
+    private Runnable onDisconnect;
+    private volatile MsgpCodec codec;
+    private volatile boolean closed;
+
+    /**
+     * @param limitBytes bytes that may be queued before the policy takes effect
+     * @param policy
+     * @param onEnqueue called after every enqueue so a polling writer can be woken up, may be null
+     * @param onDisconnect called when the DISCONNECT policy closes the queue, may be null. Runs
+     *                     on the thread enqueuing, which may be a shard's, so it must not wait
+     */
+    public OutboundQueue(long limitBytes, SlowConsumerPolicy policy, Runnable onEnqueue, Runnable onDisconnect) {
+        this.frames = new LinkedBlockingDeque<>();
+        this.queuedBytes = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.limitBytes = limitBytes;
+        this.policy = policy;
+        this.onEnqueue = onEnqueue;
+        this.onDisconnect = onDisconnect;
+        this.codec = MsgpCodec.TEXT;
+    }
+
+    /**
+     * Queue an encoded message sent to this connection, subject to the byte limit.
+     * The frame may be a view of a buffer shared with other connections, the writer only
+     * moves this view's position.
+     *
+     * @param frame
+     */
+    public void enqueue(ByteBuffer frame) {
+        if (closed) {
+            return;
+        }
+        if (queuedBytes.get() + frame.remaining() > limitBytes && !makeRoom(frame.remaining())) {
+            return;
+        }
+        add(new Entry(frame, true));
+    }
+
+    /**
+     * Encode a reply to one of the connection's requests and queue it.
+     * Replies are never dropped, the client is waiting for them. A reply is queued as long as
+     * the bytes already queued are within the limit, so a single large reply still goes out, and
+     * the connection is disconnected once they are not.
+     *
+     * @param opcode opcode of the request
+     * @param requestId id of the request
+     * @param reply
+     * @throws IOException if the reply does not fit in a frame
+     */
+    public void reply(int opcode, int requestId, String reply) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (queuedBytes.get() > limitBytes) {
+            disconnect();
+            return;
+        }
+        add(new Entry(codec.encode(Msgp.REPLY, opcode, requestId, reply), false));
+    }
+
+    /**
+     * Wire format of the connection, in both directions.
+     *
+     * @return
+     */
+    public MsgpCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Switch the connection's wire format. Only done during "msgp hello", before the
+     * connection has a user and can be sent messages.
+     *
+     * @param codec
+     */
+    public void setCodec(MsgpCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Remove the next frame, or return null if the queue is empty.
+     *
+     * @return
+     */
+    public ByteBuffer poll() {
+        return removed(frames.poll());
+    }
+
+    /**
+     * Wait for the next frame. Returns null once the queue is closed.
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public ByteBuffer take() throws InterruptedException {
+        return removed(frames.take());
+    }
+
+    /**
+     * Drop queued frames and release a writer waiting in take().
+     */
+    public void close() {
+        closed = true;
+        frames.clear();
+        queuedBytes.set(0);
+        frames.add(CLOSED);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Messages this queue dropped because of its policy.
+     *
+     * @return
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public static long getDroppedOldest() {
+        return droppedOldest.sum();
+    }
+
+    public static long getDroppedNewest() {
+        return droppedNewest.sum();
+    }
+
+    public static long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    public static long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    public static long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    public static long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public static long getWriteFailures() {
+        return writeFailures.sum();
+    }
+
+    /**
+     * Count one write to a socket. Called by the queue's writer.
+     *
+     * @param frames frames completed by the write
+     * @param bytes bytes the socket accepted
+     */
+    static void countWrite(int frames, long bytes) {
+        socketWrites.increment();
+        framesWritten.add(frames);
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Count a write that failed, closing the connection. Called by the queue's writer.
+     */
+    static void countWriteFailure() {
+        writeFailures.increment();
+    }
+
+    /**
+     * Apply the policy to a message of size bytes that does not fit.
+     *
+     * @param size
+     * @return whether the message should still be queued
+     */
+    private boolean makeRoom(int size) {
+        if (policy == SlowConsumerPolicy.DISCONNECT) {
+            disconnect();
+            return false;
+        }
+        // Dropping older messages cannot make room for a message over the limit by itself
+        if (policy == SlowConsumerPolicy.DROP_OLDEST && size <= limitBytes) {
+            // Drop the oldest messages still waiting, skipping replies
+            Iterator<Entry> entries = frames.iterator();
+            while (queuedBytes.get() + size > limitBytes && entries.hasNext()) {
+                Entry entry = entries.next();
+                // The writer may have taken it in the meantime
+                if (entry.droppable && frames.removeFirstOccurrence(entry)) {
+                    queuedBytes.addAndGet(-entry.frame.remaining());
+                    dropped.incrementAndGet();
+                    droppedOldest.increment();
+                }
+            }
+            // Queued replies may still leave too little room
+            if (queuedBytes.get() + size <= limitBytes) {
+                return true;
+            }
+        }
+        dropped.incrementAndGet();
+        droppedNewest.increment();
+        return false;
+    }
+
+    /**
+     * Close the queue and tell the connection, which is not reading what it is sent.
+     */
+    private void disconnect() {
+        disconnects.increment();
+        close();
+        System.out.println("Disconnected slow consumer with " + limitBytes + " bytes queued");
+        if (onDisconnect != null) {
+            onDisconnect.run();
+        }
+    }
+
+    private void add(Entry entry) {
+        queuedBytes.addAndGet(entry.frame.remaining());
+        frames.add(entry);
+        if (onEnqueue != null) {
+            onEnqueue.run();
+        }
+    }
+
+    private ByteBuffer removed(Entry entry) {
+        if (entry == null || entry == CLOSED) {
+            return null;
+        }
+        queuedBytes.addAndGet(-entry.frame.remaining());
+        return entry.frame;
+    }
+
+    /**
+     * A queued frame and whether the policy may drop it.
+     */
+    private static class Entry {
+        private ByteBuffer frame;
+        private boolean droppable;
+
+        private Entry(ByteBuffer frame, boolean droppable) {
+            this.frame = frame;
+            this.droppable = droppable;
+        }
+    }
+}
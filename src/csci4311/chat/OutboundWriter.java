@@ -0,0 +1,83 @@
+/**
+ * Drains a connection's OutboundQueue onto its socket.
+ * Used by ChatServerThread, so a blocked write only ever stalls this writer and not the
+ * threads sending messages to the connection.
+ *
+ * Frames are copied into a buffer that is written out once the queue is empty or the buffer is
+ * full. A lone reply is written as soon as it is queued, while the frames of a fan-out burst
+ * that pile up during a write go out together in the next one.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.nio.*;
+
+public class OutboundWriter implements Runnable {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private OutboundQueue outboundQueue;
+    private OutputStream outputStream;
+    // Frames are read-only views of shared buffers, their bytes are copied through here
+    private byte[] buffer;
+    private int length;
+    // Frames whose last byte is in the buffer
+    private int frames;
+
+    public OutboundWriter(OutboundQueue outboundQueue, OutputStream outputStream) {
+        this.outboundQueue = outboundQueue;
+        this.outputStream = outputStream;
+        this.buffer = new byte[BUFFER_BYTES];
+    }
+
+    /**
+     * Write frames until the queue is closed or the socket fails.
+     */
+    public void run() {
+        ByteBuffer frame;
+        try {
+            while (true) {
+                frame = outboundQueue.poll();
+                if (frame == null) {
+                    // Nothing else is waiting, write what is buffered before blocking
+                    flush();
+                    // poll() may have removed the queue's closed marker
+                    if (outboundQueue.isClosed() || (frame = outboundQueue.take()) == null) {
+                        return;
+                    }
+                }
+                while (frame.hasRemaining()) {
+                    if (length == buffer.length) {
+                        flush();
+                    }
+                    int copied = Math.min(buffer.length - length, frame.remaining());
+                    frame.get(buffer, length, copied);
+                    length += copied;
+                }
+                frames++;
+            }
+        } catch (IOException e) {
+            System.out.println("The follow error occurred: " + e);
+            OutboundQueue.countWriteFailure();
+            outboundQueue.close();
+        } catch (InterruptedException e) {
+            outboundQueue.close();
+        }
+    }
+
+    /**
+     * Write the buffer to the socket in one call.
+     *
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        if (length == 0) {
+            return;
+        }
+        outputStream.write(buffer, 0, length);
+        OutboundQueue.countWrite(frames, length);
+        length = 0;
+        frames = 0;
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Resolves the @user and #group recipients of a send into the set of local OutboundQueues to
+ * deliver it to, before anything is delivered.
+ *
+ * Every recipient is checked first, so a send with a bad recipient changes nothing. Users are
+ * then collected once each, whether they are named directly, through one group or through
+ * several, so nobody receives a message twice. Group members are read on the group's Shard.
+ * A user in several of the groups is delivered to through the first of them named, and a user
+ * named directly who is also in one of the groups through that group, so the message reaches
+ * them in that group's order.
+ *
+ * Resolved sets are cached by the text of the send's recipient list, so a hot send to several
+ * groups is not resolved again until one of its recipients changes. A cached set keeps the
+ * version of each of its groups, which changes with the group's members and when a member
+ * connects or disconnects, and the queue each user named directly had. It is only used while
+ * those are unchanged, so joins, leaves and connections elsewhere on the server leave it
+ * valid. Sends with recipients that are only on other nodes of a federation are never cached,
+ * as the Relay's state has no version.
+ */
+
+package csci4311.chat;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class RecipientResolver {
+
+    // The cache is emptied when it grows past this many recipient lists
+    private static final int MAX_CACHED = 1024;
+
+    private ConcurrentHashMap<String, OutboundQueue> users;
+    private ShardRing shards;
+    private Relay relay;
+    private ConcurrentHashMap<String, RecipientSet> cache;
+
+    /**
+     * @param users the server's users and their OutboundQueues
+     * @param shards
+     * @param relay null if the server is not federated
+     */
+    public RecipientResolver(ConcurrentHashMap<String, OutboundQueue> users, ShardRing shards, Relay relay) {
+        this.users = users;
+        this.shards = shards;
+        this.relay = relay;
+        this.cache = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Forget every cached set.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Check every recipient of a send and resolve them into a deduplicated set.
+     * Recipients that only exist on other nodes are left to the Relay. A relayed message skips
+     * the recipients this node does not have.
+     *
+     * @param request a parsed send
+     * @param relayed
+     * @return null if a recipient does not exist
+     */
+    public RecipientSet resolve(RequestParser request, boolean relayed) {
+        RecipientSet cached = cache.get(request.getRecipients());
+        if (cached != null && cached.isCurrent(users)) {
+            return cached;
+        }
+
+        ArrayList<String> direct = new ArrayList<>();
+        ArrayList<Group> groups = new ArrayList<>();
+        boolean cacheable = true;
+        for (int i = 0; i < request.getRecipientCount(); i++) {
+            CharSlice name = request.getRecipientName(i);
+            // If the recipient is a user
+            if (request.getRecipientType(i) == '@') {
+                if (users.containsKey(name)) {
+                    direct.add(name.toString());
+                } else if (relayed || (relay != null && relay.hasUser(name))) {
+                    cacheable = false;
+                } else {
+                    return null;
+                }
+            // If recipient is a group
+            } else {
+                Group group = shards.getGroup(name);
+                if (group != null) {
+                    if (!groups.contains(group)) {
+                        groups.add(group);
+                    }
+                } else if (relayed || (relay != null && relay.hasGroup(name))) {
+                    cacheable = false;
+                } else {
+                    return null;
+                }
+            }
+        }
+
+        // Every recipient exists, collect the members of the groups
+        HashSet<String> seen = new HashSet<>();
+        long[] versions = new long[groups.size()];
+        OutboundQueue[][] members = new OutboundQueue[groups.size()][];
+        int count = 0;
+        for (int g = 0; g < groups.size(); g++) {
+            Group group = groups.get(g);
+            // Read before the members, a change made meanwhile invalidates the result
+            versions[g] = group.getVersion();
+            members[g] = collect(shards.shardFor(group.getName()).call(group::getMembers), seen);
+            count += members[g].length;
+        }
+        // The queue each direct user has now, whether or not it is delivered to directly
+        OutboundQueue[] named = new OutboundQueue[direct.size()];
+        for (int i = 0; i < named.length; i++) {
+            named[i] = users.get(direct.get(i));
+        }
+        OutboundQueue[] directQueues = collect(direct, seen);
+        count += directQueues.length;
+
+        RecipientSet resolved = new RecipientSet(groups.toArray(new Group[0]), versions, members,
+                direct.toArray(new String[0]), named, directQueues, count);
+        if (cacheable) {
+            if (cache.size() >= MAX_CACHED) {
+                cache.clear();
+            }
+            cache.put(request.getRecipients().toString(), resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Queues of the named users not seen yet, each added to seen.
+     *
+     * @param names
+     * @param seen
+     * @return
+     */
+    private OutboundQueue[] collect(List<String> names, HashSet<String> seen) {
+        ArrayList<OutboundQueue> queues = new ArrayList<>();
+        for (String name : names) {
+            OutboundQueue outboundQueue = users.get(name);
+            // The user may have disconnected since
+            if (outboundQueue != null && seen.add(name)) {
+                queues.add(outboundQueue);
+            }
+        }
+        return queues.toArray(new OutboundQueue[0]);
+    }
+
+    /**
+     * The groups whose history a send is added to, the local users it is delivered to through
+     * each group, and the ones it is delivered to directly. Every user is in it once.
+     * Shared by every send with the same recipient list, so it is never changed.
+     */
+    static class RecipientSet {
+        private Group[] groups;
+        private long[] versions;
+        private OutboundQueue[][] members;
+        // Users named directly and the queue each had when resolved
+        private String[] named;
+        private OutboundQueue[] namedQueues;
+        private OutboundQueue[] direct;
+        private int count;
+
+        private RecipientSet(Group[] groups, long[] versions, OutboundQueue[][] members, String[] named,
+                OutboundQueue[] namedQueues, OutboundQueue[] direct, int count) {
+            this.groups = groups;
+            this.versions = versions;
+            this.members = members;
+            this.named = named;
+            this.namedQueues = namedQueues;
+            this.direct = direct;
+            this.count = count;
+        }
+
+        /**
+         * @param users
+         * @return whether no group changed and no user named directly reconnected since
+         */
+        private boolean isCurrent(ConcurrentHashMap<String, OutboundQueue> users) {
+            for (int g = 0; g < groups.length; g++) {
+                if (groups[g].getVersion() != versions[g]) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < named.length; i++) {
+                if (users.get(named[i]) != namedQueues[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Group[] getGroups() {
+            return groups;
+        }
+
+        /**
+         * @param group index of the group in getGroups()
+         * @return the users delivered to through the group
+         */
+        public OutboundQueue[] getMembers(int group) {
+            return members[group];
+        }
+
+        /**
+         * @return the users named directly that are in none of the groups
+         */
+        public OutboundQueue[] getDirect() {
+            return direct;
+        }
+
+        /**
+         * @return number of local users delivered to
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,467 @@
+/**
+ * Links a ChatServer to the other nodes of a federation, so users connected to different nodes
+ * can message each other and share groups.
+ *
+ * Every node listens on its relay port and dials every peer it is configured with, so there is a
+ * link in each direction between any two nodes. A node writes to the links it dialed, through
+ * an OutboundQueue like any connection, and reads from the links it accepted.
+ *
+ * A node sends its name and all of its users and memberships over a new link, then every change
+ * as it is made. Each node learns from this which peers have which users and group members.
+ * A send is delivered to the local recipients and forwarded once to each peer with a
+ * recipient. That peer delivers it to its own recipients and does not forward it again, so
+ * every node must be configured with every other node as a peer.
+ *
+ * Only the configured peers are trusted: a link is accepted from the address of a configured
+ * peer only, and with a relay secret configured both ends of a link must send it in their hello.
+ * The secret is sent as is, it keeps out other hosts and processes, not someone reading the
+ * network.
+ *
+ * Relay frames are binary msgp frames with a text payload:
+ *
+ *   relay hello\n<node>\n<secret>               first frame in both directions of a dialed link
+ *   relay member\n<operation>\n<user>\n<group>   a MembershipLog operation on the sending node
+ *   relay send\n<message>                        a message to deliver to the local recipients
+ *
+ * Frames for a peer whose link is down are dropped. A link is also dropped once LINK_LIMIT bytes
+ * are queued on it because the peer does not keep up. The peer is sent the full state again once
+ * it is redialed.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Relay implements Runnable {
+
+    private static final String HELLO = "relay hello\n";
+    private static final String MEMBER = "relay member\n";
+    private static final String SEND = "relay send\n";
+    private static final long REDIAL_MILLIS = 1000;
+    // Bytes queued on a link before it is dropped and redialed
+    private static final long LINK_LIMIT = 64 * 1024 * 1024;
+
+    private ChatServer chatServer;
+    private String node;
+    private String secret;
+    private ServerSocket socket;
+    private ArrayList<InetSocketAddress> peerAddresses;
+    private Thread.Builder readThreads;
+    // Every peer that has dialed this node or been dialed by it, by node name
+    private ConcurrentHashMap<String, Peer> peers;
+
+    /**
+     * Bind the relay port. Nothing is dialed or accepted until start().
+     *
+     * @param chatServer
+     * @param config
+     * @throws IOException
+     */
+    public Relay(ChatServer chatServer, ServerConfig config) throws IOException {
+        this.chatServer = chatServer;
+        this.node = config.getNode();
+        this.secret = config.getRelaySecret();
+        this.peerAddresses = config.getPeers();
+        this.peers = new ConcurrentHashMap<>();
+        this.readThreads = Thread.ofPlatform().name("msgp-relay-read-", 0).daemon();
+        this.socket = new ServerSocket(config.getRelayPort());
+    }
+
+    /**
+     * Start accepting peers and dialing the configured ones.
+     */
+    public void start() {
+        Thread.ofPlatform().name("msgp-relay-accept").daemon().start(this);
+        for (InetSocketAddress address : peerAddresses) {
+            Thread.ofPlatform().name("msgp-relay-dial-" + address.getHostString() + ":" + address.getPort())
+                    .daemon().start(() -> dial(address));
+        }
+    }
+
+    /**
+     * Accept links dialed by configured peers, each read on a thread of its own.
+     */
+    public void run() {
+        while (true) {
+            try {
+                Socket peerSocket = socket.accept();
+                if (!isPeerAddress(peerSocket.getInetAddress())) {
+                    System.out.println("Refused relay link from " + peerSocket.getInetAddress());
+                    peerSocket.close();
+                    continue;
+                }
+                readThreads.start(() -> read(peerSocket));
+            } catch (IOException e) {
+                System.out.println("Acceptance Error: " + e);
+            }
+        }
+    }
+
+    /**
+     * Queue a membership change for every connected peer. Called by the ChatServer while it
+     * holds the user's membership lock, so a user's changes reach a peer in the order they
+     * were made.
+     *
+     * @param operation
+     * @param user
+     * @param group
+     */
+    public void publish(int operation, String user, String group) {
+        ByteBuffer frame = null;
+        for (Peer peer : peers.values()) {
+            OutboundQueue link = peer.link;
+            if (link == null) {
+                continue;
+            }
+            if (frame == null) {
+                frame = encode(MEMBER + operation + "\n" + user + "\n" + group);
+                if (frame == null) {
+                    return;
+                }
+            }
+            link.enqueue(frame.duplicate());
+        }
+    }
+
+    /**
+     * Forward a message that was delivered locally to every peer with one of its recipients.
+     *
+     * @param request
+     */
+    public void forward(RequestParser request) {
+        ByteBuffer frame = null;
+        for (Peer peer : peers.values()) {
+            OutboundQueue link = peer.link;
+            if (link == null || !peer.hasRecipient(request)) {
+                continue;
+            }
+            if (frame == null) {
+                frame = encode(SEND + request.getRequest());
+                if (frame == null) {
+                    return;
+                }
+            }
+            link.enqueue(frame.duplicate());
+        }
+    }
+
+    /**
+     * @param user
+     * @return whether a peer has the user
+     */
+    public boolean hasUser(CharSequence user) {
+        for (Peer peer : peers.values()) {
+            if (peer.userGroups.containsKey(user)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param group
+     * @return whether a peer has the group
+     */
+    public boolean hasGroup(CharSequence group) {
+        for (Peer peer : peers.values()) {
+            if (peer.groups.containsKey(group)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add the names of the groups on every peer.
+     *
+     * @param names
+     */
+    public void addGroupsTo(Collection<String> names) {
+        for (Peer peer : peers.values()) {
+            names.addAll(peer.groups.keySet());
+        }
+    }
+
+    /**
+     * Add the members a group has on every peer.
+     *
+     * @param group
+     * @param names
+     */
+    public void addMembersTo(String group, Collection<String> names) {
+        for (Peer peer : peers.values()) {
+            Set<String> members = peer.groups.get(group);
+            if (members != null) {
+                names.addAll(members);
+            }
+        }
+    }
+
+    /**
+     * @param group
+     * @return members the group has on all peers
+     */
+    public int countMembers(String group) {
+        int count = 0;
+        for (Peer peer : peers.values()) {
+            Set<String> members = peer.groups.get(group);
+            if (members != null) {
+                count += members.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Keep a link to a peer open, redialing it whenever it drops.
+     *
+     * @param address
+     */
+    private void dial(InetSocketAddress address) {
+        while (true) {
+            try (Socket peerSocket = new Socket(address.getHostString(), address.getPort())) {
+                peerSocket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(peerSocket.getInputStream()));
+                peerSocket.getOutputStream().write(toArray(encode(HELLO + node + "\n" + secret)));
+                Peer peer = peers.computeIfAbsent(readHello(in), Peer::new);
+
+                // A peer that stops reading has its link closed, which ends the writer, and is redialed
+                OutboundQueue link = new OutboundQueue(LINK_LIMIT, SlowConsumerPolicy.DISCONNECT, null,
+                        () -> closeQuietly(peerSocket));
+                link.setCodec(MsgpCodec.BINARY);
+                // The state is written while it is queued, so only a peer that falls behind fills the link
+                Thread writer = Thread.ofPlatform().name("msgp-relay-write-" + peer.name).daemon()
+                        .start(new OutboundWriter(link, peerSocket.getOutputStream()));
+                // Changes made from now on follow the state
+                chatServer.publishMembership(this, peer, link);
+                writer.join();
+                peer.link = null;
+                System.out.println("Lost relay link to " + peer.name);
+            } catch (ProtocolException e) {
+                System.out.println("The follow error occurred: " + e);
+            } catch (IOException e) {
+                // Not up yet or gone, try again
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queue a membership record on a link that is being brought up. Called by the ChatServer
+     * from publishMembership().
+     *
+     * @param link
+     * @param operation
+     * @param user
+     * @param group
+     */
+    void publish(OutboundQueue link, int operation, String user, String group) {
+        ByteBuffer frame = encode(MEMBER + operation + "\n" + user + "\n" + group);
+        if (frame != null) {
+            link.enqueue(frame);
+        }
+    }
+
+    /**
+     * Start sending changes to a peer once it has been sent the state. Called by the ChatServer
+     * from publishMembership().
+     *
+     * @param peer
+     * @param link
+     */
+    void connected(Peer peer, OutboundQueue link) {
+        peer.link = link;
+        System.out.println("Relaying to " + peer.name);
+    }
+
+    /**
+     * Read a link dialed by a peer until it closes. The peer's state is rebuilt from what it
+     * sends, and forgotten when the link closes.
+     *
+     * @param peerSocket
+     */
+    private void read(Socket peerSocket) {
+        Peer peer = null;
+        try (peerSocket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(peerSocket.getInputStream()));
+            String name = readHello(in);
+            peerSocket.getOutputStream().write(toArray(encode(HELLO + node + "\n" + secret)));
+            peer = peers.computeIfAbsent(name, Peer::new);
+            // The peer sends all of its state again
+            peer.clear();
+
+            while (true) {
+                String payload = MsgpCodec.BINARY.read(in).getPayload();
+                if (payload.startsWith(SEND)) {
+                    chatServer.deliverRelayed(payload.substring(SEND.length()));
+                } else if (payload.startsWith(MEMBER)) {
+                    String[] fields = payload.split("\n", -1);
+                    peer.apply(Integer.parseInt(fields[1]), fields[2], fields[3]);
+                }
+            }
+        } catch (EOFException e) {
+            // The peer closed the link
+        } catch (IOException | RuntimeException e) {
+            System.out.println("The follow error occurred: " + e);
+        }
+        if (peer != null) {
+            peer.clear();
+        }
+    }
+
+    /**
+     * Read the hello that starts a link and check the peer's secret.
+     *
+     * @param in
+     * @return the peer's node name
+     * @throws IOException if the frame is not a hello or the secret is wrong
+     */
+    private String readHello(DataInputStream in) throws IOException {
+        String payload = MsgpCodec.BINARY.read(in).getPayload();
+        int nodeEnd = payload.indexOf('\n', HELLO.length());
+        if (!payload.startsWith(HELLO) || nodeEnd < 0) {
+            throw new ProtocolException("expected relay hello");
+        }
+        // Compared in constant time, so the secret cannot be guessed byte by byte
+        if (!MessageDigest.isEqual(payload.substring(nodeEnd + 1).getBytes(StandardCharsets.UTF_8),
+                secret.getBytes(StandardCharsets.UTF_8))) {
+            throw new ProtocolException("wrong relay secret");
+        }
+        return payload.substring(HELLO.length(), nodeEnd);
+    }
+
+    /**
+     * @param address
+     * @return whether address is one of the configured peers' hosts
+     */
+    private boolean isPeerAddress(InetAddress address) {
+        for (InetSocketAddress peer : peerAddresses) {
+            try {
+                for (InetAddress peerAddress : InetAddress.getAllByName(peer.getHostString())) {
+                    if (peerAddress.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                // Not resolvable now, may be later
+            }
+        }
+        return false;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private ByteBuffer encode(String payload) {
+        try {
+            return MsgpCodec.BINARY.encode(Msgp.REQUEST, Msgp.SEND, 0, payload).asReadOnlyBuffer();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Another node: the link this node writes to it, and its users and groups as it reported them.
+     */
+    static class Peer {
+        private String name;
+        private volatile OutboundQueue link;
+        // Users on the peer and the groups they are in
+        private ConcurrentHashMap<String, Set<String>> userGroups;
+        // Groups on the peer and their members there
+        private ConcurrentHashMap<String, Set<String>> groups;
+
+        private Peer(String name) {
+            this.name = name;
+            this.userGroups = new ConcurrentHashMap<>();
+            this.groups = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * Apply a change the peer made, the same way ChatServer.applyMembership() does.
+         *
+         * @param operation
+         * @param user
+         * @param group
+         */
+        private void apply(int operation, String user, String group) {
+            if (operation == MembershipLog.JOIN) {
+                userGroups.computeIfAbsent(user, name -> ConcurrentHashMap.newKeySet()).add(group);
+                groups.computeIfAbsent(group, name -> ConcurrentHashMap.newKeySet()).add(user);
+            } else if (operation == MembershipLog.LEAVE) {
+                Set<String> memberOf = userGroups.get(user);
+                if (memberOf != null) {
+                    memberOf.remove(group);
+                }
+                Set<String> members = groups.get(group);
+                if (members != null) {
+                    members.remove(user);
+                }
+            } else if (operation == MembershipLog.ADD_USER) {
+                userGroups.putIfAbsent(user, ConcurrentHashMap.newKeySet());
+            } else if (operation == MembershipLog.DISCONNECT) {
+                Set<String> memberOf = userGroups.remove(user);
+                if (memberOf != null) {
+                    for (String memberGroup : memberOf) {
+                        Set<String> members = groups.get(memberGroup);
+                        if (members != null) {
+                            members.remove(user);
+                        }
+                    }
+                }
+            } else if (operation == MembershipLog.GROUP) {
+                groups.putIfAbsent(group, ConcurrentHashMap.newKeySet());
+            }
+        }
+
+        /**
+         * @param request
+         * @return whether a user or a member of a group the request is sent to is on the peer
+         */
+        private boolean hasRecipient(RequestParser request) {
+            for (int i = 0; i < request.getRecipientCount(); i++) {
+                CharSlice name = request.getRecipientName(i);
+                if (request.getRecipientType(i) == '@') {
+                    if (userGroups.containsKey(name)) {
+                        return true;
+                    }
+                } else {
+                    Set<String> members = groups.get(name);
+                    if (members != null && !members.isEmpty()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void clear() {
+            userGroups.clear();
+            groups.clear();
+        }
+    }
+}
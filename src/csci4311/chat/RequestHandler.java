@@ -0,0 +1,347 @@
+/**
+ * Parses a msgp request, processes it with the ChatServer and formats the reply.
+ * One RequestHandler exists per connection, whether the connection is served by a
+ * ChatServerThread or by an EventLoop.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class RequestHandler {
+
+    private ChatServer chatServer;
+    private OutboundQueue outboundQueue;
+    private RequestParser requestParser;
+    // Users that joined or were added through this connection
+    private Set<String> userNames;
+    // Options of the history request being processed
+    private long historySince;
+    private int historyLimit;
+
+    /**
+     * @param chatServer
+     * @param outboundQueue queue that messages sent to this connection's user are added to
+     */
+    public RequestHandler(ChatServer chatServer, OutboundQueue outboundQueue) {
+        this.chatServer = chatServer;
+        this.outboundQueue = outboundQueue;
+        this.requestParser = new RequestParser();
+        this.userNames = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Process a request and queue the msgp reply on the connection.
+     *
+     * @param request
+     * @throws IOException if the reply does not fit in a frame
+     */
+    public void handle(MsgpFrame request) throws IOException {
+        long start = System.nanoTime();
+        int opcode = request.getOpcode();
+        if (opcode == Msgp.HELLO) {
+            hello(request);
+        } else {
+            String reply = opcode == Msgp.BATCH ? batch(request.getPayload()) : process(opcode, request.getPayload());
+            try {
+                outboundQueue.reply(opcode, request.getRequestId(), reply);
+            } catch (UTFDataFormatException e) {
+                // Too long for a text frame, e.g. a whole history, the client should ask for pages
+                outboundQueue.reply(opcode, request.getRequestId(), evaluateResponse(new Response(400)));
+            }
+        }
+        chatServer.getStats().recordCommand(opcode, System.nanoTime() - start);
+    }
+
+    /**
+     * Process a request and return the msgp reply.
+     * Malformed requests and requests missing arguments get a 400.
+     *
+     * @param opcode
+     * @param request
+     * @return
+     */
+    private String process(int opcode, String request) {
+        String response;
+        // Parse client request
+        if (!requestParser.parse(opcode, request)) {
+            return evaluateResponse(new Response(400));
+        }
+        // Process request
+        if(opcode == Msgp.JOIN && hasArguments(2)) {
+            userNames.add(requestParser.getArgument(0));
+            response = evaluateResponse(chatServer.join(requestParser.getArgument(0), requestParser.getArgument(1), outboundQueue));
+        } else if(opcode == Msgp.LEAVE && hasArguments(2)) {
+            response = evaluateResponse(chatServer.leave(requestParser.getArgument(0), requestParser.getArgument(1)));
+        } else if(opcode == Msgp.GROUPS) {
+            response = evaluateResponseWithBody(chatServer.groups());
+        } else if(opcode == Msgp.USERS && hasArguments(1)) {
+            response = evaluateResponseWithBody(chatServer.users(requestParser.getArgument(0)));
+        } else if(opcode == Msgp.HISTORY && hasArguments(1)) {
+            response = evaluateResponseWithBody(history());
+        } else if (opcode == Msgp.ADD_USER && hasArguments(1)) {
+            userNames.add(requestParser.getArgument(0));
+            response = evaluateResponseWithBody(chatServer.addUserToServer(requestParser.getArgument(0), outboundQueue));
+        } else if (opcode == Msgp.SEND) {
+            Response sent = chatServer.send(requestParser);
+            // Only a partial delivery has a body, listing the groups that did not get the message
+            response = sent.getBody() == null ? evaluateResponse(sent) : evaluateResponseWithBody(sent);
+        } else if (opcode == Msgp.COUNTS) {
+            response = evaluateResponseWithBody(chatServer.counts());
+        } else if (opcode == Msgp.STATS) {
+            response = evaluateResponseWithBody(chatServer.stats());
+        } else {
+            response = evaluateResponse(new Response(400));
+        }
+        return response;
+    }
+
+    private boolean hasArguments(int count) {
+        return requestParser.getArgumentCount() >= count;
+    }
+
+    /**
+     * msgp history <group> [since <seq>] [limit <n>]
+     *
+     * Without since or limit the whole history is returned, as before. With either one a single
+     * page is returned, starting at since (0 if not given) and holding at most limit messages.
+     * Messages too large for the connection's frames are listed as skipped instead.
+     *
+     * @return
+     */
+    private Response history() {
+        String group = requestParser.getArgument(0);
+        if (!parseHistoryOptions()) {
+            return new Response(400);
+        }
+        if (historyLimit == 0) {
+            return chatServer.history(group);
+        }
+        return chatServer.history(group, historySince, historyLimit, outboundQueue.getCodec() == MsgpCodec.TEXT);
+    }
+
+    /**
+     * Read the since and limit of the parsed history request into historySince and historyLimit,
+     * a limit of 0 standing for the whole history.
+     *
+     * @return false if the options are malformed
+     */
+    private boolean parseHistoryOptions() {
+        historySince = 0;
+        historyLimit = 0;
+        if (requestParser.getArgumentCount() == 1) {
+            return true;
+        }
+        historyLimit = Msgp.HISTORY_PAGE_LIMIT;
+        try {
+            // Options come in name value pairs
+            for (int i = 1; i < requestParser.getArgumentCount(); i += 2) {
+                String option = requestParser.getArgument(i);
+                if (i + 1 == requestParser.getArgumentCount()) {
+                    return false;
+                } else if (option.equals("since")) {
+                    historySince = Long.parseLong(requestParser.getArgument(i + 1));
+                } else if (option.equals("limit")) {
+                    historyLimit = Integer.parseInt(requestParser.getArgument(i + 1));
+                } else {
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return historySince >= 0 && historyLimit >= 1;
+    }
+
+    /**
+     * Run several requests sent in one frame, one per line:
+     *
+     * msgp batch \n
+     * msgp join alice g1 \n
+     * msgp join alice g2 \n
+     * msgp counts
+     *
+     * The requests run in order and their replies come back in one frame, "msgp 200 OK" followed
+     * by each reply's length in chars on a line of its own and then the reply. Sends, hellos and
+     * nested batches span more than a line or change the connection, they get a 400. The stats
+     * time the batch as a whole, its requests are not recorded under their own commands.
+     *
+     * Consecutive joins, leaves, users and history requests are run together by
+     * ChatServer.runGroupRequests(), with one task for each shard they touch, so joining many
+     * groups takes a round trip to each shard instead of one per group.
+     *
+     * @param request
+     * @return
+     */
+    private String batch(String request) {
+        ArrayList<String> replies = new ArrayList<>();
+        // Requests waiting to be run together, and the index of each one's reply
+        ArrayList<ChatServer.GroupRequest> groupRequests = new ArrayList<>();
+        ArrayList<Integer> groupReplies = new ArrayList<>();
+        int start = request.indexOf('\n') + 1;
+
+        while (start > 0 && start < request.length()) {
+            int end = request.indexOf('\n', start);
+            if (end < 0) {
+                end = request.length();
+            }
+            if (end > start) {
+                String line = request.substring(start, end);
+                int opcode = Msgp.opcode(line);
+                if (opcode == Msgp.SEND || opcode == Msgp.HELLO || opcode == Msgp.BATCH) {
+                    replies.add(evaluateResponse(new Response(400)));
+                } else if (opcode == Msgp.JOIN || opcode == Msgp.LEAVE || opcode == Msgp.USERS || opcode == Msgp.HISTORY) {
+                    ChatServer.GroupRequest groupRequest = groupRequest(opcode, line);
+                    if (groupRequest == null) {
+                        replies.add(evaluateResponse(new Response(400)));
+                    } else {
+                        groupReplies.add(replies.size());
+                        replies.add(null);
+                        groupRequests.add(groupRequest);
+                    }
+                } else {
+                    // Anything else may depend on the requests before it
+                    runGroupRequests(groupRequests, groupReplies, replies);
+                    replies.add(process(opcode, line));
+                }
+            }
+            start = end + 1;
+        }
+        runGroupRequests(groupRequests, groupReplies, replies);
+
+        StringBuilder batchReply = new StringBuilder("msgp 200 OK\n");
+        for (String reply : replies) {
+            batchReply.append(reply.length()).append('\n').append(reply);
+        }
+        return batchReply.toString();
+    }
+
+    /**
+     * Parse a join, leave, users or history line of a batch.
+     *
+     * @param opcode
+     * @param line
+     * @return null if the request is malformed
+     */
+    private ChatServer.GroupRequest groupRequest(int opcode, String line) {
+        if (!requestParser.parse(opcode, line)) {
+            return null;
+        }
+        if (opcode == Msgp.JOIN || opcode == Msgp.LEAVE) {
+            if (!hasArguments(2)) {
+                return null;
+            }
+            if (opcode == Msgp.JOIN) {
+                userNames.add(requestParser.getArgument(0));
+            }
+            return new ChatServer.GroupRequest(opcode, requestParser.getArgument(0), requestParser.getArgument(1), 0, 0, false);
+        }
+        if (!hasArguments(1) || (opcode == Msgp.HISTORY && !parseHistoryOptions())) {
+            return null;
+        }
+        return new ChatServer.GroupRequest(opcode, null, requestParser.getArgument(0), historySince,
+                opcode == Msgp.HISTORY ? historyLimit : 0, outboundQueue.getCodec() == MsgpCodec.TEXT);
+    }
+
+    /**
+     * Run the waiting requests of a batch and fill in their replies.
+     *
+     * @param groupRequests emptied
+     * @param groupReplies emptied
+     * @param replies
+     */
+    private void runGroupRequests(ArrayList<ChatServer.GroupRequest> groupRequests, ArrayList<Integer> groupReplies,
+                                  ArrayList<String> replies) {
+        if (groupRequests.isEmpty()) {
+            return;
+        }
+        Response[] responses = chatServer.runGroupRequests(groupRequests, outboundQueue);
+        for (int i = 0; i < responses.length; i++) {
+            int opcode = groupRequests.get(i).getOpcode();
+            replies.set(groupReplies.get(i), opcode == Msgp.JOIN || opcode == Msgp.LEAVE
+                    ? evaluateResponse(responses[i]) : evaluateResponseWithBody(responses[i]));
+        }
+        groupRequests.clear();
+        groupReplies.clear();
+    }
+
+    /**
+     * Negotiate capabilities: msgp hello <capability> <capability> ...
+     *
+     * The reply lists the capabilities the server accepted and is still sent in the current
+     * wire format, everything after it uses the new one. Switching is only allowed before the
+     * connection has a user, so no message for the user can be encoded in the old format.
+     * Deflate is only accepted along with binary, as only binary frames can mark a payload
+     * as compressed.
+     *
+     * @param request
+     * @throws IOException
+     */
+    private void hello(MsgpFrame request) throws IOException {
+        String accepted = "";
+        boolean binary = false;
+        boolean deflate = false;
+        List<String> capabilities = Arrays.asList(request.getPayload().split(" "));
+
+        if (capabilities.contains(Msgp.BINARY_CAPABILITY) && userNames.isEmpty()
+                && outboundQueue.getCodec() == MsgpCodec.TEXT) {
+            binary = true;
+            accepted += Msgp.BINARY_CAPABILITY + "\n";
+            if (capabilities.contains(Msgp.DEFLATE_CAPABILITY)) {
+                deflate = true;
+                accepted += Msgp.DEFLATE_CAPABILITY + "\n";
+            }
+        }
+        outboundQueue.reply(Msgp.HELLO, request.getRequestId(),
+                evaluateResponseWithBody(new Response(accepted.isEmpty() ? 201 : 200, accepted)));
+        if (deflate) {
+            outboundQueue.setCodec(MsgpCodec.DEFLATE);
+        } else if (binary) {
+            outboundQueue.setCodec(MsgpCodec.BINARY);
+        }
+    }
+
+    /**
+     * Remove this connection's users from the server once the connection has closed.
+     */
+    public void disconnect() {
+        for (String userName : userNames) {
+            chatServer.disconnect(userName, outboundQueue);
+        }
+        userNames.clear();
+    }
+
+    /**
+     * Based on response ChatServer response, return response to message protocol.
+     *
+     * @param response
+     * @return
+     */
+    private String evaluateResponse(Response response) {
+        if(response.getReplyCode() == 400) {
+            return "msgp 400 Error";
+        } else if(response.getReplyCode() == 201) {
+            return "msgp 201 No result";
+        } else {
+            return "msgp 200 OK";
+        }
+    }
+
+    /**
+     * Based on response from ChatServer resopnse, return response to message protocol with body.
+     *
+     * @param response
+     * @return
+     */
+    private String evaluateResponseWithBody(Response response) {
+        if(response.getReplyCode() == 400) {
+            return "msgp 400 Error";
+        } else if(response.getReplyCode() == 201) {
+            return "msgp 201 No result";
+        } else {
+            return "msgp 200 OK\n" + response.getBody();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Parses a msgp text request in place.
+ *
+ * Instead of splitting the request into new strings, the parser records where the command's
+ * arguments, the from: and to: headers and the body of a send start and end. One parser is
+ * reused for every request on a connection, so parsing a send allocates nothing and the only
+ * strings created are arguments a command asks for by index.
+ *
+ * msgp <command> <argument> <argument> ...
+ *
+ * msgp send \n
+ * from: name \n
+ * to: @name \n
+ * to: #group \n\n
+ * message \n\n
+ */
+
+package csci4311.chat;
+
+import java.util.*;
+
+public class RequestParser {
+
+    private static final int MAX_ARGUMENTS = 8;
+
+    private String request;
+    private int opcode;
+    private int[] argumentStart;
+    private int[] argumentEnd;
+    private int argumentCount;
+    private int fromStart;
+    private int fromEnd;
+    private int[] recipientStart;
+    private int[] recipientEnd;
+    private int recipientCount;
+    private int bodyStart;
+    private int bodyEnd;
+    private CharSlice slice;
+
+    public RequestParser() {
+        argumentStart = new int[MAX_ARGUMENTS];
+        argumentEnd = new int[MAX_ARGUMENTS];
+        recipientStart = new int[4];
+        recipientEnd = new int[4];
+        slice = new CharSlice();
+    }
+
+    /**
+     * Parse a request. The opcode decides how the rest of the request is read.
+     *
+     * @param opcode
+     * @param request
+     * @return false if the request is malformed
+     */
+    public boolean parse(int opcode, String request) {
+        this.request = request;
+        this.opcode = opcode;
+        argumentCount = 0;
+        recipientCount = 0;
+        fromStart = fromEnd = 0;
+        bodyStart = bodyEnd = request.length();
+
+        // Skip "msgp" and the command word
+        int position = skipWord(skipSpaces(skipWord(0)));
+        if (opcode == Msgp.SEND) {
+            return parseSend(position);
+        }
+        return parseArguments(position);
+    }
+
+    public String getRequest() {
+        return request;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public int getArgumentCount() {
+        return argumentCount;
+    }
+
+    /**
+     * Argument after the command word, starting at 0.
+     *
+     * @param index
+     * @return
+     */
+    public String getArgument(int index) {
+        return request.substring(argumentStart[index], argumentEnd[index]);
+    }
+
+    /**
+     * Value of the from: header of a send, which every parsed send has.
+     *
+     * @return
+     */
+    public String getFrom() {
+        return request.substring(fromStart, fromEnd);
+    }
+
+    public int getRecipientCount() {
+        return recipientCount;
+    }
+
+    /**
+     * '@' for a user, '#' for a group.
+     *
+     * @param index
+     * @return
+     */
+    public char getRecipientType(int index) {
+        return request.charAt(recipientStart[index]);
+    }
+
+    /**
+     * Name of a recipient without its '@' or '#'. The same CharSlice is returned for every
+     * call, so it must be used before asking for the next recipient.
+     *
+     * @param index
+     * @return
+     */
+    public CharSlice getRecipientName(int index) {
+        return slice.set(request, recipientStart[index] + 1, recipientEnd[index]);
+    }
+
+    /**
+     * Message of a send, without the blank lines that end it.
+     *
+     * @return
+     */
+    public String getBody() {
+        return request.substring(bodyStart, bodyEnd);
+    }
+
+    /**
+     * Text of a send's to: headers, from the first recipient to the end of the last, which
+     * identifies its recipient list. Returns the same CharSlice as getRecipientName().
+     *
+     * @return
+     */
+    public CharSlice getRecipients() {
+        if (recipientCount == 0) {
+            return slice.set(request, 0, 0);
+        }
+        return slice.set(request, recipientStart[0], recipientEnd[recipientCount - 1]);
+    }
+
+    /**
+     * Record the space separated words up to the end of the first line.
+     *
+     * @param position
+     * @return false if there are too many arguments
+     */
+    private boolean parseArguments(int position) {
+        while (true) {
+            position = skipSpaces(position);
+            if (position == request.length() || request.charAt(position) == '\n') {
+                return true;
+            }
+            if (argumentCount == MAX_ARGUMENTS) {
+                return false;
+            }
+            argumentStart[argumentCount] = position;
+            position = skipWord(position);
+            argumentEnd[argumentCount++] = position;
+        }
+    }
+
+    /**
+     * Record the from: and to: headers and the body that follows the blank line.
+     *
+     * @param position end of the command word
+     * @return false if the request has no from: header, a header line is neither from: nor to:,
+     *         or a recipient is not @user or #group
+     */
+    private boolean parseSend(int position) {
+        int lineStart = request.indexOf('\n', position) + 1;
+        if (lineStart == 0) {
+            return false;
+        }
+        while (lineStart < request.length()) {
+            int lineEnd = request.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = request.length();
+            }
+            // A blank line ends the headers
+            if (lineStart == lineEnd) {
+                bodyStart = lineEnd + 1;
+                break;
+            }
+            if (request.startsWith("from:", lineStart)) {
+                fromStart = skipSpaces(lineStart + 5);
+                fromEnd = lineEnd;
+            } else if (request.startsWith("to:", lineStart)) {
+                int start = skipSpaces(lineStart + 3);
+                if (lineEnd - start < 2 || (request.charAt(start) != '@' && request.charAt(start) != '#')) {
+                    return false;
+                }
+                addRecipient(start, lineEnd);
+            } else {
+                return false;
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (fromEnd <= fromStart) {
+            return false;
+        }
+        bodyStart = Math.min(bodyStart, request.length());
+        bodyEnd = request.length();
+        while (bodyEnd > bodyStart && request.charAt(bodyEnd - 1) == '\n') {
+            bodyEnd--;
+        }
+        return true;
+    }
+
+    private void addRecipient(int start, int end) {
+        if (recipientCount == recipientStart.length) {
+            recipientStart = Arrays.copyOf(recipientStart, recipientCount * 2);
+            recipientEnd = Arrays.copyOf(recipientEnd, recipientCount * 2);
+        }
+        recipientStart[recipientCount] = start;
+        recipientEnd[recipientCount++] = end;
+    }
+
+    private int skipWord(int position) {
+        while (position < request.length() && request.charAt(position) != ' ' && request.charAt(position) != '\n') {
+            position++;
+        }
+        return position;
+    }
+
+    private int skipSpaces(int position) {
+        while (position < request.length() && request.charAt(position) == ' ') {
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,445 @@
+/**
+ * Options used to start the ChatServer, parsed from the command line:
+ *
+ * ChatServer [port] [--mode=thread|virtual|nio] [--event-loops=n]
+ *            [--outbound-limit=bytes] [--slow-consumer=drop-oldest|drop-newest|disconnect]
+ *            [--history-messages=n] [--history-bytes=bytes] [--group-history=group:messages:bytes ...]
+ *            [--history-store=heap|off-heap|disk] [--history-dir=path]
+ *            [--history-segment-bytes=bytes] [--history-sync-ms=ms]
+ *            [--state-dir=path] [--snapshot-interval=changes] [--state-sync-ms=ms] [--reconnect-grace-ms=ms]
+ *            [--relay-port=port] [--peers=host:port,...] [--node=name] [--relay-secret=secret]
+ *            [--shards=n]
+ *
+ * --group-history may be given once per group and overrides the history limits for that group.
+ * --history-dir on its own implies --history-store=disk. Disk history holds no file open, and maps
+ * at most one --history-segment-bytes segment per group receiving messages plus a few being read.
+ * With --state-dir users, groups and memberships are kept in a MembershipLog and restored on startup.
+ * Restored users are offline, they keep their memberships for --reconnect-grace-ms and are then
+ * removed as if they had disconnected unless they have reconnected.
+ * With --relay-port the server is a node of a federation, --peers lists the relay ports of
+ * every other node. The relay port only accepts links from the hosts of those peers, and when
+ * --relay-secret is given every node must be given the same one. The relay port should still not
+ * be reachable from untrusted networks, the secret is not encrypted.
+ * --shards sets the number of Shards groups are partitioned across, one thread each, and
+ * defaults to the number of processors.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+public class ServerConfig {
+
+    /**
+     * How connections are served.
+     *
+     * THREAD  - one platform thread per connection blocking in readUTF()
+     * VIRTUAL - one virtual thread per connection blocking in readUTF()
+     * NIO     - a small pool of selector event loops shared by all connections
+     */
+    public enum Mode { THREAD, VIRTUAL, NIO }
+
+    /**
+     * Where group history is kept.
+     *
+     * HEAP     - a HistoryBuffer of Strings
+     * OFF_HEAP - an OffHeapHistoryStore of direct buffers, not traced by the garbage collector
+     * DISK     - a LogHistoryStore in the HistoryLog under the history directory, kept across restarts
+     */
+    public enum HistoryStorage { HEAP, OFF_HEAP, DISK }
+
+    private int port;
+    private Mode mode;
+    private int eventLoops;
+    private long outboundLimit;
+    private SlowConsumerPolicy slowConsumerPolicy;
+    private HistoryLimits historyLimits;
+    private HashMap<String, HistoryLimits> groupHistoryLimits;
+    private HistoryStorage historyStorage;
+    private File historyDirectory;
+    private int historySegmentBytes;
+    private long historySyncMillis;
+    private File stateDirectory;
+    private int snapshotInterval;
+    private long stateSyncMillis;
+    private long reconnectGraceMillis;
+    private int relayPort;
+    private ArrayList<InetSocketAddress> peers;
+    private String node;
+    private String relaySecret;
+    private int shards;
+
+    public ServerConfig() {
+        // Defaults
+        port = 4311;
+        mode = Mode.THREAD;
+        eventLoops = Runtime.getRuntime().availableProcessors();
+        outboundLimit = 1024 * 1024;
+        slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+        historyLimits = new HistoryLimits(10000, 16 * 1024 * 1024);
+        groupHistoryLimits = new HashMap<>();
+        historyStorage = HistoryStorage.HEAP;
+        historyDirectory = null;
+        historySegmentBytes = 16 * 1024 * 1024;
+        historySyncMillis = 10;
+        stateDirectory = null;
+        snapshotInterval = 10000;
+        stateSyncMillis = 10;
+        reconnectGraceMillis = 60000;
+        relayPort = 0;
+        peers = new ArrayList<>();
+        node = null;
+        relaySecret = "";
+        shards = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Parse command line arguments. A bare number is the port, everything else is --option=value.
+     *
+     * @param argv
+     * @return
+     */
+    public static ServerConfig parse(String[] argv) {
+        ServerConfig config = new ServerConfig();
+        Integer historyMessages = null;
+        Long historyBytes = null;
+        HistoryStorage historyStorage = null;
+
+        for (String arg : argv) {
+            if (!arg.startsWith("--")) {
+                config.port = Integer.parseInt(arg);
+                continue;
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected --option=value but got " + arg);
+            }
+            String option = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+
+            if (option.equals("mode")) {
+                config.mode = Mode.valueOf(value.toUpperCase());
+            } else if (option.equals("event-loops")) {
+                config.eventLoops = Integer.parseInt(value);
+            } else if (option.equals("outbound-limit")) {
+                config.outboundLimit = Long.parseLong(value);
+            } else if (option.equals("slow-consumer")) {
+                config.slowConsumerPolicy = SlowConsumerPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+            } else if (option.equals("history-messages")) {
+                historyMessages = Integer.parseInt(value);
+            } else if (option.equals("history-bytes")) {
+                historyBytes = Long.parseLong(value);
+            } else if (option.equals("group-history")) {
+                String[] limits = value.split(":");
+                if (limits.length != 3) {
+                    throw new IllegalArgumentException("Expected --group-history=group:messages:bytes but got " + arg);
+                }
+                config.groupHistoryLimits.put(limits[0],
+                        new HistoryLimits(Integer.parseInt(limits[1]), Long.parseLong(limits[2])));
+            } else if (option.equals("history-store")) {
+                historyStorage = HistoryStorage.valueOf(value.toUpperCase().replace('-', '_'));
+            } else if (option.equals("history-dir")) {
+                config.historyDirectory = new File(value);
+            } else if (option.equals("history-segment-bytes")) {
+                config.historySegmentBytes = Integer.parseInt(value);
+            } else if (option.equals("history-sync-ms")) {
+                config.historySyncMillis = Long.parseLong(value);
+            } else if (option.equals("state-dir")) {
+                config.stateDirectory = new File(value);
+            } else if (option.equals("snapshot-interval")) {
+                config.snapshotInterval = Integer.parseInt(value);
+            } else if (option.equals("state-sync-ms")) {
+                config.stateSyncMillis = Long.parseLong(value);
+            } else if (option.equals("reconnect-grace-ms")) {
+                config.reconnectGraceMillis = Long.parseLong(value);
+            } else if (option.equals("relay-port")) {
+                config.relayPort = Integer.parseInt(value);
+            } else if (option.equals("peers")) {
+                for (String peer : value.split(",")) {
+                    int colon = peer.lastIndexOf(':');
+                    if (colon < 0) {
+                        throw new IllegalArgumentException("Expected --peers=host:port,... but got " + arg);
+                    }
+                    config.peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                            Integer.parseInt(peer.substring(colon + 1))));
+                }
+            } else if (option.equals("node")) {
+                config.node = value;
+            } else if (option.equals("relay-secret")) {
+                config.relaySecret = value;
+            } else if (option.equals("shards")) {
+                config.shards = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        // Either history limit may be given without the other
+        if (historyMessages != null || historyBytes != null) {
+            config.historyLimits = new HistoryLimits(
+                    historyMessages != null ? historyMessages : config.historyLimits.getMaxMessages(),
+                    historyBytes != null ? historyBytes : config.historyLimits.getMaxBytes());
+        }
+        if (historyStorage != null) {
+            config.historyStorage = historyStorage;
+        } else if (config.historyDirectory != null) {
+            config.historyStorage = HistoryStorage.DISK;
+        }
+        if (config.historyStorage == HistoryStorage.DISK && config.historyDirectory == null) {
+            throw new IllegalArgumentException("--history-store=disk needs --history-dir");
+        }
+        if (config.shards < 1) {
+            throw new IllegalArgumentException("--shards must be at least 1");
+        }
+        if (!config.peers.isEmpty() && config.relayPort == 0) {
+            throw new IllegalArgumentException("--peers needs --relay-port");
+        }
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public ServerConfig setMode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public ServerConfig setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+        return this;
+    }
+
+    public long getOutboundLimit() {
+        return outboundLimit;
+    }
+
+    public ServerConfig setOutboundLimit(long outboundLimit) {
+        this.outboundLimit = outboundLimit;
+        return this;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public ServerConfig setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        return this;
+    }
+
+    /**
+     * History limits of groups without their own.
+     *
+     * @return
+     */
+    public HistoryLimits getHistoryLimits() {
+        return historyLimits;
+    }
+
+    public ServerConfig setHistoryLimits(HistoryLimits historyLimits) {
+        this.historyLimits = historyLimits;
+        return this;
+    }
+
+    /**
+     * History limits of a group, its own if it has any.
+     *
+     * @param group
+     * @return
+     */
+    public HistoryLimits getHistoryLimits(String group) {
+        return groupHistoryLimits.getOrDefault(group, historyLimits);
+    }
+
+    /**
+     * Override the history limits of one group. Only affects groups created afterwards.
+     *
+     * @param group
+     * @param historyLimits
+     * @return
+     */
+    public ServerConfig setHistoryLimits(String group, HistoryLimits historyLimits) {
+        groupHistoryLimits.put(group, historyLimits);
+        return this;
+    }
+
+    public HistoryStorage getHistoryStorage() {
+        return historyStorage;
+    }
+
+    public ServerConfig setHistoryStorage(HistoryStorage historyStorage) {
+        this.historyStorage = historyStorage;
+        return this;
+    }
+
+    /**
+     * Directory of the on-disk history, used by HistoryStorage.DISK.
+     *
+     * @return
+     */
+    public File getHistoryDirectory() {
+        return historyDirectory;
+    }
+
+    public ServerConfig setHistoryDirectory(File historyDirectory) {
+        this.historyDirectory = historyDirectory;
+        return this;
+    }
+
+    public int getHistorySegmentBytes() {
+        return historySegmentBytes;
+    }
+
+    public ServerConfig setHistorySegmentBytes(int historySegmentBytes) {
+        this.historySegmentBytes = historySegmentBytes;
+        return this;
+    }
+
+    public long getHistorySyncMillis() {
+        return historySyncMillis;
+    }
+
+    public ServerConfig setHistorySyncMillis(long historySyncMillis) {
+        this.historySyncMillis = historySyncMillis;
+        return this;
+    }
+
+    /**
+     * Directory of the MembershipLog, or null to start with no users and groups.
+     *
+     * @return
+     */
+    public File getStateDirectory() {
+        return stateDirectory;
+    }
+
+    public ServerConfig setStateDirectory(File stateDirectory) {
+        this.stateDirectory = stateDirectory;
+        return this;
+    }
+
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public ServerConfig setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+        return this;
+    }
+
+    public long getStateSyncMillis() {
+        return stateSyncMillis;
+    }
+
+    public ServerConfig setStateSyncMillis(long stateSyncMillis) {
+        this.stateSyncMillis = stateSyncMillis;
+        return this;
+    }
+
+    /**
+     * Time users restored by the MembershipLog have to reconnect before they are removed.
+     *
+     * @return
+     */
+    public long getReconnectGraceMillis() {
+        return reconnectGraceMillis;
+    }
+
+    public ServerConfig setReconnectGraceMillis(long reconnectGraceMillis) {
+        this.reconnectGraceMillis = reconnectGraceMillis;
+        return this;
+    }
+
+    /**
+     * Port other nodes of the federation connect to, or 0 to run on its own.
+     *
+     * @return
+     */
+    public int getRelayPort() {
+        return relayPort;
+    }
+
+    public ServerConfig setRelayPort(int relayPort) {
+        this.relayPort = relayPort;
+        return this;
+    }
+
+    /**
+     * Relay addresses of the other nodes, each one is dialed and redialed whenever its link drops.
+     *
+     * @return
+     */
+    public ArrayList<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    public ServerConfig addPeer(InetSocketAddress peer) {
+        peers.add(peer);
+        return this;
+    }
+
+    /**
+     * Name of this node, unique within the federation. Defaults to the host name and relay port.
+     *
+     * @return
+     */
+    public String getNode() {
+        if (node == null) {
+            try {
+                return InetAddress.getLocalHost().getHostName() + ":" + relayPort;
+            } catch (UnknownHostException e) {
+                return "localhost:" + relayPort;
+            }
+        }
+        return node;
+    }
+
+    public ServerConfig setNode(String node) {
+        this.node = node;
+        return this;
+    }
+
+    /**
+     * Secret every node of the federation sends when it links to another, empty for none.
+     *
+     * @return
+     */
+    public String getRelaySecret() {
+        return relaySecret;
+    }
+
+    public ServerConfig setRelaySecret(String relaySecret) {
+        this.relaySecret = relaySecret;
+        return this;
+    }
+
+    /**
+     * Number of Shards the groups are partitioned across.
+     *
+     * @return
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    public ServerConfig setShards(int shards) {
+        this.shards = shards;
+        return this;
+    }
+}
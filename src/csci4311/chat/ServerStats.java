@@ -0,0 +1,215 @@
+/**
+ * Live metrics of a ChatServer: latency of each command, the fan-out of sends, bytes read,
+ * active connections and, read when asked for, groups and history sizes. Bytes written, write
+ * failures and frames dropped are the OutboundQueue's server wide counts.
+ *
+ * Recording only adds to LongAdders and Histogram buckets, so it never takes a lock and
+ * connections recording at once do not wait for each other. The metrics are read by the
+ * "msgp stats" command and through JMX, where the server is csci4311.chat:type=Server,port=<port>
+ * and each command csci4311.chat:type=Command,port=<port>,name=<command>.
+ *
+ * A batch is timed as one command, from its frame to its reply, so its latency includes every
+ * request it runs. Those requests are not counted under their own commands.
+ *
+ * History sizes are read on every shard. "msgp stats" reads them once per call, JMX reads them
+ * at most once every HISTORY_SIZES_NANOS, so the groups and history getters read one after the
+ * other share a snapshot instead of each reading every shard.
+ */
+
+package csci4311.chat;
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+public class ServerStats implements ServerStatsMBean {
+
+    // Command names by opcode
+    private static final String[] COMMANDS = { null, "hello", "join", "leave", "groups", "users", "history",
+            "addUser", "send", "batch", "counts", "stats" };
+    // Age after which JMX reads history sizes again
+    private static final long HISTORY_SIZES_NANOS = 1000000000L;
+
+    private ChatServer chatServer;
+    private CommandStats[] commands;
+    // Local users each send was queued for
+    private Histogram fanOut;
+    private LongAdder bytesRead;
+    private LongAdder connections;
+    // Last history sizes read for JMX, and when
+    private volatile Histogram historySizes;
+    private volatile long historySizesRead;
+
+    public ServerStats(ChatServer chatServer) {
+        this.chatServer = chatServer;
+        this.commands = new CommandStats[COMMANDS.length];
+        for (int opcode = 1; opcode < COMMANDS.length; opcode++) {
+            commands[opcode] = new CommandStats(COMMANDS[opcode]);
+        }
+        this.fanOut = new Histogram();
+        this.bytesRead = new LongAdder();
+        this.connections = new LongAdder();
+    }
+
+    /**
+     * Register the server's and every command's MBean. A second server in the same JVM on the
+     * same port is left unregistered.
+     *
+     * @param port
+     */
+    public void register(int port) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName("csci4311.chat:type=Server,port=" + port));
+            for (int opcode = 1; opcode < commands.length; opcode++) {
+                server.registerMBean(commands[opcode],
+                        new ObjectName("csci4311.chat:type=Command,port=" + port + ",name=" + COMMANDS[opcode]));
+            }
+        } catch (JMException e) {
+            System.out.println("The follow error occurred: " + e);
+        }
+    }
+
+    /**
+     * @param opcode
+     * @param nanos time taken by one request, a batch's includes the requests it ran.
+     *              Opcodes that are not commands are ignored
+     */
+    public void recordCommand(int opcode, long nanos) {
+        if (opcode > 0 && opcode < commands.length) {
+            commands[opcode].record(nanos);
+        }
+    }
+
+    /**
+     * @param recipients local users a send was queued for
+     */
+    public void recordFanOut(int recipients) {
+        fanOut.record(recipients);
+    }
+
+    public void countRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void connected() {
+        connections.increment();
+    }
+
+    public void disconnected() {
+        connections.decrement();
+    }
+
+    /**
+     * Every metric, one "name value" line each. A command's latency is in microseconds.
+     *
+     * @return
+     */
+    public String format() {
+        StringBuilder stats = new StringBuilder();
+        Histogram historySizes = chatServer.historySizes();
+        line(stats, "connections", getActiveConnections());
+        line(stats, "groups", historySizes.getCount());
+        line(stats, "history.messages", historySizes.getSum());
+        line(stats, "history.largest", historySizes.getMax());
+        line(stats, "bytes.read", getBytesRead());
+        line(stats, "bytes.written", getBytesWritten());
+        line(stats, "socket.writes", getSocketWrites());
+        line(stats, "write.failures", getWriteFailures());
+        line(stats, "dropped.frames", getDroppedFrames());
+        line(stats, "slow-consumer.disconnects", getSlowConsumerDisconnects());
+        line(stats, "send.fan-out.mean", getFanOutMean());
+        line(stats, "send.fan-out.p99", getFanOutP99());
+        line(stats, "send.fan-out.max", getFanOutMax());
+        for (int opcode = 1; opcode < commands.length; opcode++) {
+            CommandStats command = commands[opcode];
+            String name = command.getName();
+            line(stats, name + ".count", command.getCount());
+            if (command.getCount() > 0) {
+                line(stats, name + ".p50-us", command.getP50Micros());
+                line(stats, name + ".p99-us", command.getP99Micros());
+                line(stats, name + ".p999-us", command.getP999Micros());
+                line(stats, name + ".max-us", command.getMaxMicros());
+            }
+        }
+        return stats.toString();
+    }
+
+    private static void line(StringBuilder stats, String name, long value) {
+        stats.append(name).append(' ').append(value).append('\n');
+    }
+
+    public long getActiveConnections() {
+        return connections.sum();
+    }
+
+    public long getGroups() {
+        return historySizes().getCount();
+    }
+
+    public long getHistoryMessages() {
+        return historySizes().getSum();
+    }
+
+    public long getLargestHistory() {
+        return historySizes().getMax();
+    }
+
+    /**
+     * History sizes read at most HISTORY_SIZES_NANOS ago. Two readers at once may both read
+     * them, the last read is kept.
+     *
+     * @return
+     */
+    private Histogram historySizes() {
+        Histogram sizes = historySizes;
+        long now = System.nanoTime();
+        if (sizes == null || now - historySizesRead > HISTORY_SIZES_NANOS) {
+            sizes = chatServer.historySizes();
+            historySizesRead = now;
+            historySizes = sizes;
+        }
+        return sizes;
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return OutboundQueue.getBytesWritten();
+    }
+
+    public long getSocketWrites() {
+        return OutboundQueue.getSocketWrites();
+    }
+
+    public long getWriteFailures() {
+        return OutboundQueue.getWriteFailures();
+    }
+
+    public long getDroppedFrames() {
+        return OutboundQueue.getDroppedOldest() + OutboundQueue.getDroppedNewest();
+    }
+
+    public long getSlowConsumerDisconnects() {
+        return OutboundQueue.getDisconnects();
+    }
+
+    public long getSends() {
+        return fanOut.getCount();
+    }
+
+    public long getFanOutMean() {
+        long count = fanOut.getCount();
+        return count == 0 ? 0 : fanOut.getSum() / count;
+    }
+
+    public long getFanOutP99() {
+        return fanOut.getPercentile(0.99);
+    }
+
+    public long getFanOutMax() {
+        return fanOut.getMax();
+    }
+}
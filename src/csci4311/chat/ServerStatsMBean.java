@@ -0,0 +1,36 @@
+/**
+ * JMX view of a ChatServer's ServerStats. Each command's latency is a CommandStatsMBean of its own.
+ */
+
+package csci4311.chat;
+
+public interface ServerStatsMBean {
+
+    long getActiveConnections();
+
+    long getGroups();
+
+    long getHistoryMessages();
+
+    long getLargestHistory();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getSocketWrites();
+
+    long getWriteFailures();
+
+    long getDroppedFrames();
+
+    long getSlowConsumerDisconnects();
+
+    long getSends();
+
+    long getFanOutMean();
+
+    long getFanOutP99();
+
+    long getFanOutMax();
+}
@@ -0,0 +1,163 @@
+/**
+ * Owns a share of the server's groups, their members and history, and the single thread that
+ * changes them.
+ *
+ * Other threads never change a group themselves. They pass the shard a task, which its thread
+ * runs after every task passed before it, so a group's members need no lock and a sender's
+ * messages to a group are appended in the order they were sent. execute() passes a task
+ * without waiting for it, submit() returns a future of its result and call() waits for it.
+ *
+ * At most MAX_TASKS tasks wait at once. A thread passing a task to a shard that far behind
+ * waits for room, so a sender that pipelines sends faster than a shard keeps up is slowed down
+ * instead of queueing messages without limit. Both execute() and call() may therefore block,
+ * and are only called from threads that may: connection threads, the virtual threads NIO
+ * connections process requests on, and the server's own background threads. Never from an
+ * EventLoop, and never from another shard's thread, as two full shards would wait for each
+ * other. A shard's thread also never takes a membership lock, as the thread holding one may be
+ * waiting on the shard: a connection the slow consumer policy closes during a send only closes
+ * its socket, and its users are removed by the connection's own thread.
+ *
+ * The map of groups is only written by the shard's thread but may be read by any thread, to
+ * find out whether a group exists or list the group names. Groups are never removed.
+ */
+
+package csci4311.chat;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+public class Shard implements Runnable {
+
+    // Tasks waiting before the threads passing more have to wait
+    private static final int MAX_TASKS = 4096;
+
+    private int id;
+    private LinkedBlockingQueue<Runnable> tasks;
+    private ConcurrentHashMap<String, Group> groups;
+    private Thread thread;
+
+    public Shard(int id) {
+        this.id = id;
+        this.tasks = new LinkedBlockingQueue<>(MAX_TASKS);
+        this.groups = new ConcurrentHashMap<>();
+    }
+
+    public void start() {
+        thread = Thread.ofPlatform().name("msgp-shard-" + id).daemon().start(this);
+    }
+
+    /**
+     * Run tasks one at a time, in the order they were passed.
+     */
+    public void run() {
+        while (true) {
+            Runnable task;
+            try {
+                task = tasks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Run a task on the shard's thread without waiting for it, unless the shard is MAX_TASKS
+     * tasks behind, then wait for room.
+     *
+     * @param task
+     */
+    public void execute(Runnable task) {
+        add(task);
+    }
+
+    /**
+     * Run a task on the shard's thread and wait for its result. Runs it right away when
+     * called from the shard's own thread.
+     *
+     * @param task
+     * @return
+     */
+    public <T> T call(Supplier<T> task) {
+        if (Thread.currentThread() == thread) {
+            return task.get();
+        }
+        return submit(task).join();
+    }
+
+    /**
+     * Run a task on the shard's thread without waiting for it, waiting for room like execute().
+     * Never called from the shard's own thread.
+     *
+     * @param task
+     * @return completed with the task's result
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        add(() -> {
+            try {
+                result.complete(task.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Queue a task, waiting for room if needed. An interrupt does not lose the task, it is
+     * kept for the caller to notice after the task is queued.
+     *
+     * @param task
+     */
+    private void add(Runnable task) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                tasks.put(task);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Look a group up. Safe to call from any thread, but only the shard's thread may use the
+     * group's members.
+     *
+     * @param name
+     * @return the group, or null if it does not exist
+     */
+    public Group getGroup(CharSequence name) {
+        return groups.get(name);
+    }
+
+    /**
+     * The shard's groups. Safe to iterate from any thread.
+     *
+     * @return
+     */
+    public Collection<Group> getGroups() {
+        return groups.values();
+    }
+
+    /**
+     * Get a group, creating it if it does not exist. Only called on the shard's thread.
+     *
+     * @param name
+     * @param create
+     * @return
+     */
+    public Group addGroup(String name, Function<String, Group> create) {
+        return groups.computeIfAbsent(name, create);
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Assigns groups to shards by consistent hashing.
+ *
+ * Every shard is placed on a ring of int hashes at POINTS positions, and a group belongs to the
+ * shard at the first position at or after the hash of its name. Spreading each shard over many
+ * positions evens out the number of groups per shard, and a ring with one more shard moves
+ * only the groups that land on the new shard's positions.
+ *
+ * Lookups hash the name as String.hashCode() does, so a CharSlice finds the same shard as the
+ * String it views, and search sorted arrays so nothing is allocated.
+ */
+
+package csci4311.chat;
+
+import java.util.*;
+
+public class ShardRing {
+
+    private static final int POINTS = 64;
+
+    private Shard[] shards;
+    // Ring positions in ascending order and the shard at each
+    private int[] positions;
+    private Shard[] owners;
+
+    /**
+     * Create and start count shards.
+     *
+     * @param count
+     */
+    public ShardRing(int count) {
+        shards = new Shard[count];
+        TreeMap<Integer, Shard> ring = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i);
+            for (int point = 0; point < POINTS; point++) {
+                ring.putIfAbsent(mix(("shard-" + i + "-" + point).hashCode()), shards[i]);
+            }
+        }
+        positions = new int[ring.size()];
+        owners = new Shard[ring.size()];
+        int index = 0;
+        for (Map.Entry<Integer, Shard> position : ring.entrySet()) {
+            positions[index] = position.getKey();
+            owners[index] = position.getValue();
+            index++;
+        }
+        for (Shard shard : shards) {
+            shard.start();
+        }
+    }
+
+    /**
+     * @param group
+     * @return the shard that owns the group
+     */
+    public Shard shardFor(CharSequence group) {
+        int index = Arrays.binarySearch(positions, mix(group.hashCode()));
+        if (index < 0) {
+            // Insertion point, wrapping around past the last position
+            index = -index - 1;
+            if (index == positions.length) {
+                index = 0;
+            }
+        }
+        return owners[index];
+    }
+
+    /**
+     * @param group
+     * @return the group, or null if it does not exist
+     */
+    public Group getGroup(CharSequence group) {
+        return shardFor(group).getGroup(group);
+    }
+
+    public Shard[] getShards() {
+        return shards;
+    }
+
+    /**
+     * Spread String hash codes, which differ little for similar names, over the whole ring.
+     *
+     * @param hash
+     * @return
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * What an OutboundQueue does when a message would take it over its byte limit.
+ * Replies to the connection's own requests are never dropped, only messages sent to it, and a
+ * message larger than the limit is always dropped. A connection whose replies alone go over the
+ * limit is disconnected whatever the policy.
+ */
+
+package csci4311.chat;
+
+public enum SlowConsumerPolicy {
+
+    // Make room by dropping the oldest queued messages
+    DROP_OLDEST,
+
+    // Drop the message that does not fit
+    DROP_NEWEST,
+
+    // Close the connection
+    DISCONNECT
+}
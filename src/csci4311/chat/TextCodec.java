@@ -0,0 +1,83 @@
+/**
+ * The original msgp wire format: every frame is a writeUTF() string, a two byte length
+ * followed by modified UTF-8. Frames carry no type or request id and are limited to 65535 bytes.
+ */
+
+package csci4311.chat;
+
+import java.io.*;
+import java.nio.*;
+
+public class TextCodec extends MsgpCodec {
+
+    public TextCodec(int id) {
+        super(id);
+    }
+
+    /**
+     * Frame the payload as writeUTF() would, straight into a single array.
+     * Type, opcode and request id have no place in a text frame.
+     *
+     * @param type
+     * @param opcode
+     * @param requestId
+     * @param payload
+     * @return
+     * @throws UTFDataFormatException if the encoded payload is longer than 65535 bytes
+     */
+    public ByteBuffer encode(int type, int opcode, int requestId, String payload) throws UTFDataFormatException {
+        int length = payload.length();
+        int utfLength = length;
+
+        // Count characters that take more than one byte
+        for (int i = 0; i < length; i++) {
+            char c = payload.charAt(i);
+            if (c >= 0x80 || c == 0) {
+                utfLength += (c >= 0x800) ? 2 : 1;
+            }
+        }
+        if (utfLength > 65535) {
+            throw new UTFDataFormatException("encoded string too long: " + utfLength + " bytes");
+        }
+
+        byte[] frame = new byte[utfLength + 2];
+        int position = 0;
+        frame[position++] = (byte) (utfLength >>> 8);
+        frame[position++] = (byte) utfLength;
+        for (int i = 0; i < length; i++) {
+            char c = payload.charAt(i);
+            if (c < 0x80 && c != 0) {
+                frame[position++] = (byte) c;
+            } else if (c >= 0x800) {
+                frame[position++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                frame[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                frame[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                frame[position++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                frame[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return ByteBuffer.wrap(frame);
+    }
+
+    public MsgpFrame read(DataInputStream in) throws IOException {
+        return textFrame(in.readUTF());
+    }
+
+    public int frameLength(ByteBuffer buffer) {
+        if (buffer.remaining() < 2) {
+            return -1;
+        }
+        return (buffer.getShort(buffer.position()) & 0xffff) + 2;
+    }
+
+    protected MsgpFrame decode(ByteBuffer buffer, int length) throws IOException {
+        byte[] frame = new byte[length];
+        buffer.get(frame);
+        return textFrame(new DataInputStream(new ByteArrayInputStream(frame)).readUTF());
+    }
+
+    private MsgpFrame textFrame(String payload) {
+        return new MsgpFrame(Msgp.UNKNOWN, Msgp.opcode(payload), 0, payload);
+    }
+}
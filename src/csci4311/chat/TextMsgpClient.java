@@ -1,5 +1,18 @@
 /**
  * Processes requests from client by fowarding requests to the server.
+ * On connect it asks the server for binary frames and falls back to text frames
+ * when the server does not support them.
+ *
+ * Any number of requests may be in flight at once. Each request gets a CompletableFuture that
+ * run() completes with the reply: binary replies carry the id of their request, text replies
+ * come back in the order the requests were sent.
+ *
+ * Messages pushed by the server are published to the subscribers of messages(), each with its
+ * own buffer and run on an executor, never on the thread reading the socket. While a subscriber's
+ * buffer is full the reading thread waits for room, so the server is slowed down through TCP
+ * instead of messages being lost. A subscriber still full after MESSAGE_WAIT_SECONDS would hold
+ * up replies too long: the message is dropped and the subscriber gets onError once it reaches
+ * the point where the message is missing, so it is never left unaware of a gap.
  */
 
 package csci4311.chat;
@@ -7,14 +20,33 @@ package csci4311.chat;
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 public class TextMsgpClient extends Thread implements MsgpClient {
 
+    // Time processRequest() waits for a reply before giving up on it
+    private static final long REPLY_TIMEOUT_SECONDS = 30;
+    // Time a pushed message waits for room in a subscriber's buffer before it is dropped
+    private static final long MESSAGE_WAIT_SECONDS = 5;
+
     private DataOutputStream dataOutputStream;
     private DataInputStream dataInputStream;
-    private String request;
-    private String response;
     private String userName;
+    private MsgpCodec codec;
+    private int nextRequestId;
+    // Requests waiting for a reply, by request id for binary frames and in order for text frames
+    private ConcurrentHashMap<Integer, CompletableFuture<String>> pendingById;
+    private ConcurrentLinkedQueue<CompletableFuture<String>> pendingInOrder;
+    // Held while a request is registered and written, so both happen in the same order
+    private ReentrantLock writeLock;
+    // Why the connection failed, null while it is open
+    private IOException failure;
+    // Pushed messages for the subscribers of messages()
+    private SubmissionPublisher<Message> messages;
+    private LongAdder droppedMessages;
     CLIUserAgent client;
 
     /**
@@ -23,13 +55,33 @@ public class TextMsgpClient extends Thread implements MsgpClient {
      * @throws Exception
      */
     public TextMsgpClient(CLIUserAgent client, Socket clientSocket, String userName) throws Exception {
+        this(client, clientSocket, userName, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+    }
+
+    /**
+     * @param client
+     * @param clientSocket
+     * @param userName
+     * @param executor runs the subscribers of messages()
+     * @param messageBuffer messages buffered per subscriber before the reading thread waits
+     * @throws Exception
+     */
+    public TextMsgpClient(CLIUserAgent client, Socket clientSocket, String userName,
+                          Executor executor, int messageBuffer) throws Exception {
         // Instantiate instance variables
-        this.dataOutputStream = new DataOutputStream(clientSocket.getOutputStream()) ;
-        this.dataInputStream = new DataInputStream(clientSocket.getInputStream()) ;
-        this.request = "";
-        this.response = "";
+        this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+        this.dataInputStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
         this.client = client;
         this.userName = userName;
+        this.pendingById = new ConcurrentHashMap<>();
+        this.pendingInOrder = new ConcurrentLinkedQueue<>();
+        this.writeLock = new ReentrantLock();
+        this.messages = new SubmissionPublisher<>(executor, messageBuffer);
+        this.droppedMessages = new LongAdder();
+        // Pipelined requests are small, send each one right away
+        clientSocket.setTcpNoDelay(true);
+        // Agree on the wire format before anything else is read
+        this.codec = negotiate();
         // Starts a thread
         this.start();
     }
@@ -38,26 +90,56 @@ public class TextMsgpClient extends Thread implements MsgpClient {
      * Listen to input stream for messages and replies.
      */
     public void run() {
-        String incomingMessage;
+        MsgpFrame incomingFrame;
         try {
             while (true) {
                 // Wait for incoming messages
-                incomingMessage = dataInputStream.readUTF();
+                incomingFrame = codec.read(dataInputStream);
                 // If the message was sent from another user
-                if (incomingMessage.startsWith("msgp send")) {
-                    Message message = decodeMessage(incomingMessage);
+                if (incomingFrame.isPush()) {
+                    Message message = decodeMessage(incomingFrame.getPayload());
                     if (!message.getFrom().equals(userName)) {
-                        client.deliverMessage(message);
+                        // Waits for a full subscriber, one that stays full misses the message and is told
+                        messages.offer(message, MESSAGE_WAIT_SECONDS, TimeUnit.SECONDS, (subscriber, dropped) -> {
+                            droppedMessages.increment();
+                            ((DropReporting) subscriber).dropped = true;
+                            return false;
+                        });
                     }
                 } else { // If it is not a message it is a response to a request
-                    response = incomingMessage;
+                    CompletableFuture<String> reply = codec != MsgpCodec.TEXT
+                            ? pendingById.remove(incomingFrame.getRequestId())
+                            : pendingInOrder.poll();
+                    if (reply != null) {
+                        reply.complete(incomingFrame.getPayload());
+                    }
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
+            fail(e);
+            messages.closeExceptionally(e);
         }
     }
 
+    /**
+     * Messages sent to this client's user by other users, as they arrive.
+     *
+     * @return
+     */
+    public Flow.Publisher<Message> messages() {
+        return subscriber -> messages.subscribe(new DropReporting(subscriber));
+    }
+
+    /**
+     * Messages subscribers missed because their buffer stayed full.
+     *
+     * @return
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
     /**
      * Request to add a user to a chat group.
      *
@@ -66,8 +148,7 @@ public class TextMsgpClient extends Thread implements MsgpClient {
      * @return
      */
     public String join(String user, String group) {
-        request = "msgp join " + user + " " + group;
-        return processRequest(request);
+        return processRequest("msgp join " + user + " " + group);
     }
 
     /**
@@ -78,8 +159,7 @@ public class TextMsgpClient extends Thread implements MsgpClient {
      * @return
      */
     public String leave(String user, String group) {
-        request = "msgp leave " + user + " " + group;
-        return processRequest(request);
+        return processRequest("msgp leave " + user + " " + group);
     }
 
     /**
@@ -108,25 +188,18 @@ public class TextMsgpClient extends Thread implements MsgpClient {
      * @return
      */
     public ArrayList<String> groups() {
-        ArrayList<String> groups = new ArrayList<>();
-        request = "msgp groups";
+        ArrayList<String> groups;
         // Process request
-        try {
-            dataOutputStream.writeUTF(request);
-            this.setResponse();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (response.startsWith("msg 400")) {
-                return null;
-            } else {
-                // Split the response into group names using delimiter "\n" and save them to the array list
-                groups = new ArrayList<>(Arrays.asList(response.split("\n")));
-                // Remove the first string in the list, which is the protocol's response message
-                groups.remove(0);
-            }
-            return groups;
+        String response = processRequest("msgp groups");
+        if (response == null || response.startsWith("msg 400")) {
+            return null;
+        } else {
+            // Split the response into group names using delimiter "\n" and save them to the array list
+            groups = new ArrayList<>(Arrays.asList(response.split("\n")));
+            // Remove the first string in the list, which is the protocol's response message
+            groups.remove(0);
         }
+        return groups;
     }
 
     /**
@@ -137,85 +210,231 @@ public class TextMsgpClient extends Thread implements MsgpClient {
      */
     public ArrayList<String> users(String group) {
         ArrayList<String> users = new ArrayList<>();
-        request = "msgp users " + group;
         // Process request
-        try {
-            dataOutputStream.writeUTF(request);
-            this.setResponse();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            // If the group does not exist
-            if (response.startsWith("msgp 400")) {
-                client.deliverError(group + " does not exist.");
-            } else {
-                // Split the response into user names using delimiter "\n" and save them to the array list
-                users = new ArrayList<>( Arrays.asList(response.split("\n")));
-                // Remove protocol's response message
-                users.remove(0);
-            }
+        String response = processRequest("msgp users " + group);
+        if (response == null) {
             return users;
         }
+        // If the group does not exist
+        if (response.startsWith("msgp 400")) {
+            client.deliverError(group + " does not exist.");
+        } else {
+            // Split the response into user names using delimiter "\n" and save them to the array list
+            users = new ArrayList<>( Arrays.asList(response.split("\n")));
+            // Remove protocol's response message
+            users.remove(0);
+        }
+        return users;
+    }
+
+    /**
+     * Request every group with its number of members, in one round trip.
+     *
+     * @return member counts by group, empty if there are no groups
+     */
+    public LinkedHashMap<String, Integer> counts() {
+        LinkedHashMap<String, Integer> counts = new LinkedHashMap<>();
+        String response = processRequest("msgp counts");
+        if (response != null && response.startsWith("msgp 200")) {
+            String[] lines = response.split("\n");
+            // Skip the protocol's response message
+            for (int i = 1; i < lines.length; i++) {
+                int separator = lines[i].lastIndexOf(' ');
+                counts.put(lines[i].substring(0, separator), Integer.parseInt(lines[i].substring(separator + 1)));
+            }
+        }
+        return counts;
     }
 
     /**
-     * Request group history.
+     * Send several requests in one frame and wait for all their replies.
+     * Each request is a whole single line request, such as "msgp join alice g1".
+     *
+     * @param requests
+     * @return the replies in request order, empty if the batch failed
+     */
+    public ArrayList<String> batch(List<String> requests) {
+        ArrayList<String> replies = new ArrayList<>();
+        StringBuilder batch = new StringBuilder("msgp batch");
+        for (String request : requests) {
+            batch.append('\n').append(request);
+        }
+        String response = processRequest(batch.toString());
+        if (response == null || !response.startsWith("msgp 200")) {
+            return replies;
+        }
+        // Each reply is preceded by its length on a line of its own
+        int position = response.indexOf('\n') + 1;
+        while (position > 0 && position < response.length()) {
+            int lengthEnd = response.indexOf('\n', position);
+            int length = Integer.parseInt(response.substring(position, lengthEnd));
+            replies.add(response.substring(lengthEnd + 1, lengthEnd + 1 + length));
+            position = lengthEnd + 1 + length;
+        }
+        return replies;
+    }
+
+    /**
+     * Request group history, one page at a time.
      *
      * @param group
      * @return
      */
     public ArrayList<Message> history(String group) {
         ArrayList<Message> history = new ArrayList<>();
-        request = "msgp history " + group;
+        long since = 0;
+        // Keep asking for the next page until the server has no more
+        do {
+            since = history(group, since, Msgp.HISTORY_PAGE_LIMIT, history);
+        } while (since >= 0);
+        if (history.isEmpty())
+            client.deliverError(group + " does not have any history.");
+        return history;
+    }
+
+    /**
+     * Request one page of group history and add its messages to page.
+     *
+     * @param group
+     * @param since sequence number of the first message wanted
+     * @param limit maximum number of messages in the page
+     * @param page
+     * @return sequence number to request the next page with, or -1 if there are no more messages
+     */
+    public long history(String group, long since, int limit, List<Message> page) {
+        String response = processRequest("msgp history " + group + " since " + since + " limit " + limit);
+        if (response == null || !response.startsWith("msgp 200"))
+            return -1;
+        // Body is "next: <seq>" followed by the messages
+        int headerStart = response.indexOf('\n') + 1;
+        int headerEnd = response.indexOf('\n', headerStart);
+        long next = Long.parseLong(response.substring(headerStart + "next: ".length(), headerEnd));
+        // Messages too large for a text frame are only listed
+        while (response.startsWith("skipped: ", headerEnd + 1)) {
+            int skippedEnd = response.indexOf('\n', headerEnd + 1);
+            String[] skipped = response.substring(headerEnd + 1 + "skipped: ".length(), skippedEnd).split(" ");
+            client.deliverError("Message " + skipped[0] + " of " + group + " is too large to show (" + skipped[1] + " bytes).");
+            headerEnd = skippedEnd;
+        }
+        // The page may only have skipped messages
+        if (headerEnd + 1 == response.length())
+            return next;
+        // Parse response so that each index is a message
+        String[] parsedResponse = response.substring(headerEnd + 1).split("\n\nmsgp send");
+        // Decode all messages in the page
+        for (String message: parsedResponse) {
+            page.add(decodeMessage(message));
+        }
+        return next;
+    }
+
+    /**
+     * Process request by writing to output stream and wait for the reply.
+     *
+     * @param request
+     * @return the reply, or null if the connection failed or no reply came in REPLY_TIMEOUT_SECONDS
+     */
+    public String processRequest(String request) {
         try {
-            dataOutputStream.writeUTF(request);
-            this.setResponse();
-        } catch (IOException e) {
+            return sendRequest(request).get(REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
             e.printStackTrace();
-        } finally {
-            if (response.startsWith("msgp 201") || response.startsWith("msgp 400"))
-                client.deliverError(group + " does not have any history.");
-            else {
-                // Parse response so that each index is a message
-                String[] parsedResponse = response.split("\n\nmsgp send");
-                // Decode all messages in the list and save them to the group history
-                for (String message: parsedResponse) {
-                    history.add(decodeMessage(message));
-                }
-            }
-            return history;
+        } catch (TimeoutException e) {
+            System.out.println("The follow error occurred: no reply within " + REPLY_TIMEOUT_SECONDS + " seconds");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return null;
     }
 
     /**
-     * Process request by writing to output stream.
+     * Write a request without waiting for its reply, so more requests can be sent meanwhile.
+     * The future is completed on the thread reading the socket.
      *
      * @param request
-     * @return
+     * @return completed with the reply, or exceptionally if the connection fails first
      */
-    public String processRequest(String request) {
+    public CompletableFuture<String> sendRequest(String request) {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        writeLock.lock();
         try {
-            dataOutputStream.writeUTF(request);
-            this.setResponse();
+            if (failure != null) {
+                reply.completeExceptionally(failure);
+                return reply;
+            }
+            // 0 is the id of pushed messages
+            if (++nextRequestId == 0) {
+                nextRequestId = 1;
+            }
+            ByteBuffer frame = codec.encode(Msgp.REQUEST, Msgp.opcode(request), nextRequestId, request);
+            if (codec != MsgpCodec.TEXT) {
+                pendingById.put(nextRequestId, reply);
+            } else {
+                pendingInOrder.add(reply);
+            }
+            try {
+                dataOutputStream.write(frame.array(), frame.arrayOffset(), frame.remaining());
+                // Threads waiting to send flush this request along with theirs
+                if (!writeLock.hasQueuedThreads()) {
+                    dataOutputStream.flush();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            // The request did not fit in a frame and was not sent
+            reply.completeExceptionally(e);
         } finally {
-            return response;
+            writeLock.unlock();
         }
+        return reply;
     }
 
     /**
-     * Wait for response from server. response will be set in run().
+     * Fail every request still waiting for a reply, and every request sent from now on.
+     *
+     * @param e
      */
-    public void setResponse() {
-        response = "";
-        while (response.equals("")) {
-            try {
-                Thread.sleep(20);
-            } catch( InterruptedException ie) {
-                ie.printStackTrace();
+    private void fail(IOException e) {
+        writeLock.lock();
+        try {
+            if (failure == null) {
+                failure = e;
             }
+        } finally {
+            writeLock.unlock();
+        }
+        CompletableFuture<String> reply;
+        while ((reply = pendingInOrder.poll()) != null) {
+            reply.completeExceptionally(e);
         }
+        for (Integer requestId : pendingById.keySet()) {
+            reply = pendingById.remove(requestId);
+            if (reply != null) {
+                reply.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Ask the server to switch to binary frames with large payloads compressed. Servers that
+     * do not know "msgp hello" treat it as a send without recipients and reply without
+     * accepting it.
+     *
+     * @return the codec to use from now on
+     * @throws IOException
+     */
+    private MsgpCodec negotiate() throws IOException {
+        dataOutputStream.writeUTF("msgp hello " + Msgp.BINARY_CAPABILITY + " " + Msgp.DEFLATE_CAPABILITY);
+        dataOutputStream.flush();
+        String reply = dataInputStream.readUTF();
+        if (!reply.startsWith("msgp 200") || !reply.contains("\n" + Msgp.BINARY_CAPABILITY + "\n")) {
+            return MsgpCodec.TEXT;
+        }
+        if (reply.contains("\n" + Msgp.DEFLATE_CAPABILITY + "\n")) {
+            return MsgpCodec.DEFLATE;
+        }
+        return MsgpCodec.BINARY;
     }
 
     /**
@@ -247,7 +466,7 @@ public class TextMsgpClient extends Thread implements MsgpClient {
             }
         }
 
-        request = "msgp send\nfrom: " + userName + "\n";
+        String request = "msgp send\nfrom: " + userName + "\n";
         for (String recipient: recipients) {
             request += ("to: " + recipient + "\n");
         }
@@ -285,4 +504,52 @@ public class TextMsgpClient extends Thread implements MsgpClient {
         }
         return new Message(sender,null, message);
     }
-}
\ No newline at end of file
+
+    /**
+     * Passes messages on to a subscriber of messages(), ending with onError once the subscriber
+     * reaches a message it missed. A message is only dropped while the buffer is full, so a
+     * message already buffered always comes after the drop is marked.
+     */
+    private static class DropReporting implements Flow.Subscriber<Message> {
+        private Flow.Subscriber<? super Message> subscriber;
+        private Flow.Subscription subscription;
+        // Set by the reading thread when a message for this subscriber was dropped
+        private volatile boolean dropped;
+        private boolean failed;
+
+        private DropReporting(Flow.Subscriber<? super Message> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscriber.onSubscribe(subscription);
+        }
+
+        public void onNext(Message message) {
+            if (failed) {
+                return;
+            }
+            if (dropped) {
+                failed = true;
+                subscription.cancel();
+                subscriber.onError(new IllegalStateException("Messages were dropped, the subscriber fell "
+                        + MESSAGE_WAIT_SECONDS + " seconds behind"));
+                return;
+            }
+            subscriber.onNext(message);
+        }
+
+        public void onError(Throwable throwable) {
+            if (!failed) {
+                subscriber.onError(throwable);
+            }
+        }
+
+        public void onComplete() {
+            if (!failed) {
+                subscriber.onComplete();
+            }
+        }
+    }
+}